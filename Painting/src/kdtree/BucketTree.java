@@ -0,0 +1,833 @@
+package kdtree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import palette.ColorIndex;
+import palette.Metric;
+
+/**
+ * BucketTree is a KD-tree over packed 24-bit RGB keys (<TT>0xRRGGBB</TT>) whose leaves are buckets of keys rather than
+ * single keys. All keys sit in one <TT>int</TT> array, each bucket a contiguous slice of it, so a search descends a
+ * shallow tree and then scans a few dozen adjacent ints instead of chasing pointers through the deepest levels. Inner
+ * nodes split their keys at the median of the channel with the widest spread.
+ *
+ * Like {@link RGBTree}, every node tracks how many live keys its subtree holds and the tightest box around them, so
+ * used colours stop costing query time. A used colour is swapped to the end of its bucket's live slice, which keeps the
+ * live keys of each bucket contiguous.
+ *
+ * The tree is built once from a whole palette and only shrinks; there is no insert.
+ */
+public class BucketTree implements ColorIndex {
+
+	// marks a missing child, and is returned by nearest() for an empty tree
+	public static final int NONE = -1;
+
+	public static final int DEFAULT_BUCKET_SIZE = 32;
+
+	// first int of files written by save(), "BKTR"
+	public static final int MAGIC = 0x424B5452;
+
+	// nearest neighbour search result: squared distance in the high word, key position in the low word. NO_MATCH
+	// decodes to NONE and a distance nothing can reach.
+	private static final long NO_MATCH = Long.MAX_VALUE;
+
+	// pruning bounds are scaled by 1 / (1 + epsilon)^2 in fixed point with SHIFT fraction bits, rounding up so
+	// that nothing is pruned that could beat the best by more than epsilon. EXACT means no scaling.
+	private static final int SHIFT = 16;
+	private static final int EXACT = 1 << SHIFT;
+
+	private final int bucketSize;
+
+	// every key, grouped by bucket; the live keys of a bucket come first in its slice
+	private final int[] keys;
+
+	// child and parent node indices, or NONE. Buckets have no children.
+	private int[] left;
+	private int[] right;
+	private int[] parent;
+
+	// split channel of inner nodes, 0 for red to 2 for blue. Keys whose channel is at most cut go left.
+	private byte[] axis;
+	private int[] cut;
+
+	// position in keys of the slice of each bucket
+	private int[] start;
+
+	// count of live keys in the subtree of each node
+	private int[] live;
+
+	// per channel minimum and maximum of the live keys in the subtree of each node, packed like the keys. Only
+	// meaningful while the subtree has live keys.
+	private int[] lo;
+	private int[] hi;
+
+	private int root = NONE;
+
+	// count of allocated nodes
+	private int nodes;
+
+	// k nearest neighbour search state: positions of the best keys found so far
+	private final IntMaxHeap heap = new IntMaxHeap();
+
+	// pruning bound scale of destructive searches, see setEpsilon()
+	private int shrink = EXACT;
+
+	// channel weights of the distance searches minimise, see setMetric()
+	private Metric metric = Metric.EUCLIDEAN;
+	private int wr = 1;
+	private int wg = 1;
+	private int wb = 1;
+
+	// cost counters, or null when not counting, and the cost of the current search
+	private TreeStats stats;
+	private long visited;
+	private long distances;
+
+	/**
+	 * Builds a tree of many colours with {@link #DEFAULT_BUCKET_SIZE} colours to a bucket.
+	 *
+	 * @param colors
+	 *            packed colours; alpha bytes are ignored
+	 */
+	public BucketTree(final int[] colors) {
+		this(colors, DEFAULT_BUCKET_SIZE);
+	}
+
+	/**
+	 * Builds a balanced tree of many colours. Duplicate colours are dropped.
+	 *
+	 * @param colors
+	 *            packed colours; alpha bytes are ignored
+	 * @param bucketSize
+	 *            most colours a bucket holds; subtrees with more are split
+	 */
+	public BucketTree(final int[] colors, final int bucketSize) {
+		if (bucketSize < 1) {
+			throw new IllegalArgumentException("bucket size must be positive: " + bucketSize);
+		}
+		this.bucketSize = bucketSize;
+
+		int[] k = new int[colors.length];
+		for (int i = 0; i < k.length; i++) {
+			k[i] = colors[i] & 0xFFFFFF;
+		}
+		Arrays.parallelSort(k);
+		int n = 0;
+		for (int i = 0; i < k.length; i++) {
+			if (n == 0 || k[i] != k[n - 1]) {
+				k[n++] = k[i];
+			}
+		}
+		keys = n < k.length ? Arrays.copyOf(k, n) : k;
+
+		// buckets hold at least half a bucket each, so this is usually enough
+		final int capacity = Math.max(4 * n / bucketSize + 1, 16);
+		left = new int[capacity];
+		right = new int[capacity];
+		parent = new int[capacity];
+		axis = new byte[capacity];
+		cut = new int[capacity];
+		start = new int[capacity];
+		live = new int[capacity];
+		lo = new int[capacity];
+		hi = new int[capacity];
+
+		if (n > 0) {
+			root = build(0, n, NONE);
+		}
+	}
+
+	// reads a tree written by save()
+	private BucketTree(final ByteBuffer in) {
+		bucketSize = in.getInt();
+		nodes = in.getInt();
+		root = in.getInt();
+		keys = IndexFile.getInts(in, in.getInt());
+		left = IndexFile.getInts(in, nodes);
+		right = IndexFile.getInts(in, nodes);
+		parent = IndexFile.getInts(in, nodes);
+		cut = IndexFile.getInts(in, nodes);
+		start = IndexFile.getInts(in, nodes);
+		live = IndexFile.getInts(in, nodes);
+		lo = IndexFile.getInts(in, nodes);
+		hi = IndexFile.getInts(in, nodes);
+		axis = IndexFile.getBytes(in, nodes);
+	}
+
+	// fork of another tree, sharing its layout
+	private BucketTree(final BucketTree from) {
+		bucketSize = from.bucketSize;
+		keys = from.keys.clone();
+		left = from.left;
+		right = from.right;
+		parent = from.parent;
+		axis = from.axis;
+		cut = from.cut;
+		start = from.start;
+		live = from.live.clone();
+		lo = from.lo.clone();
+		hi = from.hi.clone();
+		root = from.root;
+		nodes = from.nodes;
+		shrink = from.shrink;
+		setMetric(from.metric);
+	}
+
+	/**
+	 * Returns a tree holding the same live colours that marks them used independently of this one. The inner nodes and
+	 * buckets never change after the build, so they are shared. The keys are copied, since marking a colour used
+	 * reorders its bucket, and so are the live counts and boxes.
+	 */
+	@Override
+	public BucketTree fork() {
+		return new BucketTree(this);
+	}
+
+	/**
+	 * Reads a tree written by {@link #save(Path)}. The file is memory-mapped and its arrays are copied out in bulk, so
+	 * this costs about as much as reading the file, far less than building the tree.
+	 *
+	 * @param file
+	 *            file to read
+	 * @return the tree, in the state it was saved in
+	 * @throws IOException
+	 *             if the file cannot be read or is not a saved BucketTree
+	 */
+	public static BucketTree load(final Path file) throws IOException {
+		final ByteBuffer in = IndexFile.map(file, MAGIC);
+		if (in.remaining() < 16) {
+			throw new IOException("Truncated index file: " + file);
+		}
+		final int nodes = in.getInt(in.position() + 4);
+		final int keys = in.getInt(in.position() + 12);
+		if (nodes < 0 || keys < 0 || in.remaining() < 16 + 4L * keys + 33L * nodes) {
+			throw new IOException("Truncated index file: " + file);
+		}
+		final BucketTree tree = new BucketTree(in);
+		if (!tree.isConsistent()) {
+			throw new IOException("Corrupt index file: " + file);
+		}
+		return tree;
+	}
+
+	/*
+	 * Whether a tree read from a file links its nodes into one tree of buckets inside the key array, with live counts
+	 * that add up and every live key in the bucket the cuts lead it to, so that nothing done with it reads out of its
+	 * arrays.
+	 */
+	private boolean isConsistent() {
+		if (bucketSize < 1 || !IndexFile.isTree(root, left, right, parent, nodes)) {
+			return false;
+		}
+		for (int t = 0; t < nodes; t++) {
+			if (left[t] == NONE) {
+				if (right[t] != NONE || start[t] < 0 || live[t] < 0 || (long) start[t] + live[t] > keys.length) {
+					return false;
+				}
+			} else if (right[t] == NONE || axis[t] < 0 || axis[t] > 2 || live[t] != (long) live[left[t]] + live[right[t]]) {
+				return false;
+			}
+		}
+		if (root == NONE) {
+			return true;
+		}
+
+		// lowest and highest value of each channel the cuts let into each node, six to a node
+		final int[] bounds = new int[6 * nodes];
+		final int[] stack = new int[nodes];
+		int top = 0;
+		for (int c = 0; c < 3; c++) {
+			bounds[6 * root + 2 * c + 1] = 0xFF;
+		}
+		stack[top++] = root;
+		while (top > 0) {
+			final int t = stack[--top];
+			if (left[t] == NONE) {
+				for (int i = start[t]; i < start[t] + live[t]; i++) {
+					if ((keys[i] & ~0xFFFFFF) != 0) {
+						return false;
+					}
+					for (int c = 0; c < 3; c++) {
+						final int v = channel(keys[i], c);
+						if (v < bounds[6 * t + 2 * c] || v > bounds[6 * t + 2 * c + 1]) {
+							return false;
+						}
+					}
+				}
+				continue;
+			}
+			final int a = left[t];
+			final int b = right[t];
+			System.arraycopy(bounds, 6 * t, bounds, 6 * a, 6);
+			System.arraycopy(bounds, 6 * t, bounds, 6 * b, 6);
+			// keys whose channel is at most the cut go left
+			final int cut = Math.max(Math.min(this.cut[t], 0xFF), -1);
+			bounds[6 * a + 2 * axis[t] + 1] = Math.min(bounds[6 * a + 2 * axis[t] + 1], cut);
+			bounds[6 * b + 2 * axis[t]] = Math.max(bounds[6 * b + 2 * axis[t]], cut + 1);
+			stack[top++] = a;
+			stack[top++] = b;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the tree to a file, layout and used colours included, for {@link #load(Path)} to read back.
+	 *
+	 * @param file
+	 *            file to write, replaced if it exists
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void save(final Path file) throws IOException {
+		try (IndexFile.Out out = new IndexFile.Out(file, MAGIC)) {
+			out.putInt(bucketSize);
+			out.putInt(nodes);
+			out.putInt(root);
+			out.putInt(keys.length);
+			out.putInts(keys, keys.length);
+			out.putInts(left, nodes);
+			out.putInts(right, nodes);
+			out.putInts(parent, nodes);
+			out.putInts(cut, nodes);
+			out.putInts(start, nodes);
+			out.putInts(live, nodes);
+			out.putInts(lo, nodes);
+			out.putInts(hi, nodes);
+			for (int t = 0; t < nodes; t++) {
+				out.putByte(axis[t]);
+			}
+		}
+	}
+
+	/**
+	 * Finds the live colour nearest to a colour by squared euclidean distance. The search allocates nothing and keeps
+	 * no state in the tree beyond cost counters, so concurrent searches are safe as long as nothing modifies the tree,
+	 * though their counts may be lost.
+	 *
+	 * @param rgb
+	 *            packed colour; the alpha byte is ignored
+	 * @return the nearest packed colour, or {@link #NONE} if the tree is empty
+	 */
+	@Override
+	public int nearest(final int rgb) {
+		final int p = (int) nnbr(root, rgb & 0xFFFFFF, NO_MATCH, EXACT);
+		record();
+		return p == NONE ? NONE : keys[p];
+	}
+
+	@Override
+	public int nearestAndRemove(final int rgb) {
+		final int p = (int) nnbr(root, rgb & 0xFFFFFF, NO_MATCH, shrink);
+		record();
+		if (p == NONE) {
+			return NONE;
+		}
+		final int key = keys[p];
+		remove(bucket(key), p);
+		return key;
+	}
+
+	/**
+	 * Finds the <I>n</I> live colours nearest to a colour and marks them used, in one traversal.
+	 */
+	@Override
+	public int nearestAndRemove(final int rgb, final int n, final int[] out) {
+		if (n <= 0) {
+			return 0;
+		} else if (n == 1) {
+			final int c = nearestAndRemove(rgb);
+			out[0] = c;
+			return c == NONE ? 0 : 1;
+		}
+
+		heap.reset(n);
+		knnbr(root, rgb & 0xFFFFFF, shrink);
+		record();
+		final int found = heap.drain(out);
+
+		// removing a key moves others within its bucket, so read every key before removing any
+		for (int i = 0; i < found; i++) {
+			out[i] = keys[out[i]];
+		}
+		for (int i = 0; i < found; i++) {
+			final int t = bucket(out[i]);
+			remove(t, indexOf(t, out[i]));
+		}
+		return found;
+	}
+
+	@Override
+	public boolean remove(final int rgb) {
+		if (root == NONE) {
+			return false;
+		}
+		final int t = bucket(rgb & 0xFFFFFF);
+		final int p = indexOf(t, rgb & 0xFFFFFF);
+		if (p == NONE) {
+			return false;
+		}
+		remove(t, p);
+		return true;
+	}
+
+	/**
+	 * Finds the <I>n</I> live colours nearest to a colour without marking them used. The search is exact and reuses a heap
+	 * kept in the tree, so it allocates nothing, but unlike {@link #nearest(int)} it must not run concurrently with
+	 * other searches.
+	 *
+	 * @param rgb
+	 *            packed colour; the alpha byte is ignored
+	 * @param n
+	 *            how many colours to find
+	 * @param out
+	 *            receives the packed colours, nearest first; at least <I>n</I> long
+	 * @return the number of colours found, less than <I>n</I> only if the tree holds fewer
+	 */
+	public int nearest(final int rgb, final int n, final int[] out) {
+		if (n <= 0) {
+			return 0;
+		}
+		heap.reset(n);
+		knnbr(root, rgb & 0xFFFFFF, EXACT);
+		record();
+		final int found = heap.drain(out);
+		for (int i = 0; i < found; i++) {
+			out[i] = keys[out[i]];
+		}
+		return found;
+	}
+
+	/**
+	 * Walks the tree to take a snapshot of its structure. Nodes, inner ones and buckets alike, count as dead once they
+	 * hold no live colours. The walk must not run concurrently with modifications.
+	 *
+	 * @return node counts and depth histogram
+	 */
+	public TreeShape shape() {
+		final TreeShape.Builder shape = new TreeShape.Builder();
+		for (int t = 0; t < nodes; t++) {
+			int depth = 0;
+			for (int u = parent[t]; u != NONE; u = parent[u]) {
+				depth++;
+			}
+			shape.add(depth, live[t] > 0);
+		}
+		return shape.build();
+	}
+
+	/**
+	 * Starts or stops counting the cost of searches and rebuilds. While counters are attached every search adds the
+	 * nodes it visited and the distances it computed to them.
+	 *
+	 * @param stats
+	 *            counters to add to, possibly shared with other trees, or null to stop counting
+	 */
+	public void setStats(final TreeStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @return the counters attached by {@link #setStats(TreeStats)}, or null
+	 */
+	public TreeStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Lets {@link #nearestAndRemove(int)} settle for a colour up to <TT>1 + epsilon</TT> times as far as the nearest, by
+	 * skipping subtrees and buckets that cannot beat the best so far by more than that. {@link #nearest(int)} stays exact.
+	 */
+	@Override
+	public void setEpsilon(final double epsilon) {
+		if (!(epsilon >= 0)) {
+			throw new IllegalArgumentException("epsilon must be non-negative: " + epsilon);
+		}
+		shrink = (int) Math.ceil(EXACT / ((1 + epsilon) * (1 + epsilon)));
+	}
+
+	/**
+	 * Weights the channels in every distance and box bound the searches work out, so pruning stays exact.
+	 */
+	@Override
+	public void setMetric(final Metric metric) {
+		this.metric = metric;
+		wr = metric.red();
+		wg = metric.green();
+		wb = metric.blue();
+	}
+
+	@Override
+	public int distance(final int a, final int b) {
+		return metric.distance(a, b);
+	}
+
+	@Override
+	public int size() {
+		return root == NONE ? 0 : live[root];
+	}
+
+	/**
+	 * Builds a tree of the live keys with the same bucket size, dropping the nodes that have emptied.
+	 *
+	 * @return the rebuilt tree
+	 */
+	@Override
+	public BucketTree rebuild() {
+		return rebuild(toArray());
+	}
+
+	/**
+	 * Builds a tree of other colours with this tree's bucket size, epsilon and statistics counters.
+	 */
+	@Override
+	public BucketTree rebuild(final int[] colors) {
+		final long begin = stats == null ? 0 : System.nanoTime();
+		final BucketTree tree = new BucketTree(colors, bucketSize);
+		tree.shrink = shrink;
+		tree.setMetric(metric);
+		tree.stats = stats;
+		if (stats != null) {
+			stats.recordRebuild(System.nanoTime() - begin);
+		}
+		return tree;
+	}
+
+	/**
+	 * Gathers the live slices of the buckets.
+	 */
+	@Override
+	public int[] toArray() {
+		final int[] k = new int[size()];
+		int n = 0;
+		for (int t = 0; t < nodes; t++) {
+			if (left[t] == NONE) {
+				System.arraycopy(keys, start[t], k, n, live[t]);
+				n += live[t];
+			}
+		}
+		return k;
+	}
+
+	// hands the cost of the search just finished to the counters
+	private void record() {
+		if (stats != null) {
+			stats.recordQuery(visited, distances);
+		}
+		visited = 0;
+		distances = 0;
+	}
+
+	// builds the subtree of keys[from, to) in place and returns its root
+	private int build(final int from, final int to, final int up) {
+		final int t = newNode(up);
+
+		int l = keys[from];
+		int h = keys[from];
+		for (int i = from + 1; i < to; i++) {
+			l = min(l, keys[i]);
+			h = max(h, keys[i]);
+		}
+		live[t] = to - from;
+		lo[t] = l;
+		hi[t] = h;
+
+		if (to - from <= bucketSize) {
+			left[t] = NONE;
+			right[t] = NONE;
+			start[t] = from;
+			return t;
+		}
+
+		// keys are distinct, so with more than one of them some channel has a spread
+		int lev = 0;
+		for (int c = 1; c < 3; c++) {
+			if (channel(h, c) - channel(l, c) > channel(h, lev) - channel(l, lev)) {
+				lev = c;
+			}
+		}
+		final int mid = from + to >>> 1;
+		select(from, to - 1, mid, lev);
+		final int pivot = channel(keys[mid], lev);
+
+		// three way partition into keys below, equal to and above the pivot
+		int lt = from;
+		int gt = to;
+		for (int i = from; i < gt;) {
+			final int c = channel(keys[i], lev);
+			if (c < pivot) {
+				swap(lt++, i++);
+			} else if (c > pivot) {
+				swap(i, --gt);
+			} else {
+				i++;
+			}
+		}
+
+		// keys equal to the pivot go left unless that would leave nothing on the right
+		final int split;
+		if (gt < to) {
+			split = gt;
+			cut[t] = pivot;
+		} else {
+			split = lt;
+			cut[t] = pivot - 1;
+		}
+		axis[t] = (byte) lev;
+
+		final int a = build(from, split, t);
+		left[t] = a;
+		final int b = build(split, to, t);
+		right[t] = b;
+		return t;
+	}
+
+	// Hoare's selection on keys[from, to] by a channel, leaving the k-th smallest at k
+	private void select(int from, int to, final int k, final int lev) {
+		while (from < to) {
+			final int pivot = median(channel(keys[from], lev), channel(keys[from + to >>> 1], lev), channel(keys[to], lev));
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (channel(keys[i], lev) < pivot) {
+					i++;
+				}
+				while (channel(keys[j], lev) > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (k <= j) {
+				to = j;
+			} else if (k >= i) {
+				from = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(final int i, final int j) {
+		final int k = keys[i];
+		keys[i] = keys[j];
+		keys[j] = k;
+	}
+
+	private static int median(final int a, final int b, final int c) {
+		return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+	}
+
+	// returns the better of best and the nearest live key below t, encoded like NO_MATCH
+	private long nnbr(final int t, final int target, long best, final int shrink) {
+		// nothing left below t, or nothing below t can beat the best so far
+		if (t == NONE || live[t] == 0 || boxdist(lo[t], hi[t], target) >= limit(best >>> 32, shrink)) {
+			return best;
+		}
+
+		visited++;
+		if (left[t] == NONE) {
+			return scan(t, target, best);
+		}
+
+		if (channel(target, axis[t]) <= cut[t]) {
+			best = nnbr(left[t], target, best, shrink);
+			best = nnbr(right[t], target, best, shrink);
+		} else {
+			best = nnbr(right[t], target, best, shrink);
+			best = nnbr(left[t], target, best, shrink);
+		}
+		return best;
+	}
+
+	// brute force over the live keys of bucket t. Four distances are worked out side by side and only compared with
+	// the best once their minimum beats it, which leaves one rarely taken branch per four keys.
+	private long scan(final int t, final int target, final long best) {
+		final int r = target >>> 16;
+		final int g = target >>> 8 & 0xFF;
+		final int b = target & 0xFF;
+		final int[] k = keys;
+		int bestDist = (int) Math.min(best >>> 32, Integer.MAX_VALUE);
+		int bestAt = (int) best;
+
+		int i = start[t];
+		final int end = i + live[t];
+		distances += live[t];
+		for (; i + 3 < end; i += 4) {
+			final int d0 = sqrdist(k[i], r, g, b);
+			final int d1 = sqrdist(k[i + 1], r, g, b);
+			final int d2 = sqrdist(k[i + 2], r, g, b);
+			final int d3 = sqrdist(k[i + 3], r, g, b);
+			if (Math.min(Math.min(d0, d1), Math.min(d2, d3)) < bestDist) {
+				if (d0 < bestDist) {
+					bestDist = d0;
+					bestAt = i;
+				}
+				if (d1 < bestDist) {
+					bestDist = d1;
+					bestAt = i + 1;
+				}
+				if (d2 < bestDist) {
+					bestDist = d2;
+					bestAt = i + 2;
+				}
+				if (d3 < bestDist) {
+					bestDist = d3;
+					bestAt = i + 3;
+				}
+			}
+		}
+		for (; i < end; i++) {
+			final int d = sqrdist(k[i], r, g, b);
+			if (d < bestDist) {
+				bestDist = d;
+				bestAt = i;
+			}
+		}
+		return bestAt == (int) best ? best : (long) bestDist << 32 | bestAt;
+	}
+
+	// nnbr keeping the best positions in heap instead of only the best
+	private void knnbr(final int t, final int target, final int shrink) {
+		if (t == NONE || live[t] == 0 || heap.isFull() && boxdist(lo[t], hi[t], target) >= limit(heap.maxKey(), shrink)) {
+			return;
+		}
+
+		visited++;
+		if (left[t] == NONE) {
+			distances += live[t];
+			final int r = target >>> 16;
+			final int g = target >>> 8 & 0xFF;
+			final int b = target & 0xFF;
+			final int end = start[t] + live[t];
+			for (int i = start[t]; i < end; i++) {
+				heap.offer(i, sqrdist(keys[i], r, g, b));
+			}
+			return;
+		}
+
+		if (channel(target, axis[t]) <= cut[t]) {
+			knnbr(left[t], target, shrink);
+			knnbr(right[t], target, shrink);
+		} else {
+			knnbr(right[t], target, shrink);
+			knnbr(left[t], target, shrink);
+		}
+	}
+
+	// the bucket a key belongs in
+	private int bucket(final int key) {
+		int t = root;
+		while (left[t] != NONE) {
+			t = channel(key, axis[t]) <= cut[t] ? left[t] : right[t];
+		}
+		return t;
+	}
+
+	// position of a key in the live slice of bucket t, or NONE if it is not there
+	private int indexOf(final int t, final int key) {
+		final int end = start[t] + live[t];
+		for (int i = start[t]; i < end; i++) {
+			if (keys[i] == key) {
+				return i;
+			}
+		}
+		return NONE;
+	}
+
+	// moves the live key at p of bucket t out of the live slice, then uncounts it from t and its ancestors, refitting
+	// their boxes
+	private void remove(final int t, final int p) {
+		final int last = start[t] + --live[t];
+		swap(p, last);
+		if (live[t] > 0) {
+			int l = keys[start[t]];
+			int h = l;
+			for (int i = start[t] + 1; i < last; i++) {
+				l = min(l, keys[i]);
+				h = max(h, keys[i]);
+			}
+			lo[t] = l;
+			hi[t] = h;
+		}
+
+		for (int u = parent[t]; u != NONE; u = parent[u]) {
+			live[u]--;
+			if (live[u] == 0) {
+				continue;
+			}
+			final int a = left[u];
+			final int b = right[u];
+			if (live[a] == 0) {
+				lo[u] = lo[b];
+				hi[u] = hi[b];
+			} else if (live[b] == 0) {
+				lo[u] = lo[a];
+				hi[u] = hi[a];
+			} else {
+				lo[u] = min(lo[a], lo[b]);
+				hi[u] = max(hi[a], hi[b]);
+			}
+		}
+	}
+
+	private int newNode(final int up) {
+		if (nodes == left.length) {
+			final int capacity = left.length * 2;
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+			axis = Arrays.copyOf(axis, capacity);
+			cut = Arrays.copyOf(cut, capacity);
+			start = Arrays.copyOf(start, capacity);
+			live = Arrays.copyOf(live, capacity);
+			lo = Arrays.copyOf(lo, capacity);
+			hi = Arrays.copyOf(hi, capacity);
+		}
+		final int t = nodes++;
+		parent[t] = up;
+		return t;
+	}
+
+	// red for 0, green for 1, blue for 2
+	private static int channel(final int key, final int lev) {
+		return key >>> 16 - (lev << 3) & 0xFF;
+	}
+
+	private int sqrdist(final int key, final int r, final int g, final int b) {
+		final int dr = (key >>> 16) - r;
+		final int dg = (key >>> 8 & 0xFF) - g;
+		final int db = (key & 0xFF) - b;
+		return wr * dr * dr + wg * dg * dg + wb * db * db;
+	}
+
+	// squared distance from a key to the nearest point of a packed box
+	private int boxdist(final int l, final int h, final int key) {
+		final int dr = axisdist(l >>> 16, h >>> 16, key >>> 16);
+		final int dg = axisdist(l >>> 8 & 0xFF, h >>> 8 & 0xFF, key >>> 8 & 0xFF);
+		final int db = axisdist(l & 0xFF, h & 0xFF, key & 0xFF);
+		return wr * dr * dr + wg * dg * dg + wb * db * db;
+	}
+
+	// squared distance a subtree must come closer than to be searched, given the best so far
+	private static long limit(final long best, final int shrink) {
+		return best * shrink + EXACT - 1 >>> SHIFT;
+	}
+
+	private static int axisdist(final int l, final int h, final int c) {
+		return c < l ? l - c : c > h ? c - h : 0;
+	}
+
+	// per channel minimum of two packed colours
+	private static int min(final int a, final int b) {
+		return Math.min(a & 0xFF0000, b & 0xFF0000) | Math.min(a & 0xFF00, b & 0xFF00) | Math.min(a & 0xFF, b & 0xFF);
+	}
+
+	// per channel maximum of two packed colours
+	private static int max(final int a, final int b) {
+		return Math.max(a & 0xFF0000, b & 0xFF0000) | Math.max(a & 0xFF00, b & 0xFF00) | Math.max(a & 0xFF, b & 0xFF);
+	}
+}
@@ -0,0 +1,168 @@
+package kdtree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Binary files holding a built index: a header of ints starting with a magic number and the format version, then the
+// index arrays one after another. Everything is little-endian, which is the native order of the machines this runs on,
+// so reading a file back is a bulk copy out of a memory-mapped buffer rather than parsing.
+
+final class IndexFile {
+
+	static final int VERSION = 2;
+
+	private IndexFile() {
+	}
+
+	// maps a whole file and checks its magic number and version; the buffer is positioned after them
+	static ByteBuffer map(final Path file, final int magic) throws IOException {
+		final ByteBuffer in;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if (in.remaining() < 8 || in.getInt() != magic) {
+			throw new IOException("Not an index file of this kind: " + file);
+		}
+		final int version = in.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported index file version " + version + ": " + file);
+		}
+		return in;
+	}
+
+	static int[] getInts(final ByteBuffer in, final int n) {
+		final int[] a = new int[n];
+		final IntBuffer ints = in.asIntBuffer();
+		ints.get(a);
+		in.position(in.position() + 4 * n);
+		return a;
+	}
+
+	static long[] getLongs(final ByteBuffer in, final int n) {
+		final long[] a = new long[n];
+		in.asLongBuffer().get(a);
+		in.position(in.position() + 8 * n);
+		return a;
+	}
+
+	static byte[] getBytes(final ByteBuffer in, final int n) {
+		final byte[] a = new byte[n];
+		in.get(a);
+		return a;
+	}
+
+	/*
+	 * Whether child and parent links read from a file join the first n nodes into one tree under root, with every link
+	 * in range and every child's parent pointing back. Walks down the tree and up parent chains then end, and never
+	 * index out of the arrays. -1 marks a missing node.
+	 */
+	static boolean isTree(final int root, final int[] left, final int[] right, final int[] parent, final int n) {
+		if (n == 0) {
+			return root == -1;
+		}
+		if (root < 0 || root >= n || parent[root] != -1) {
+			return false;
+		}
+		for (int t = 0; t < n; t++) {
+			final int l = left[t];
+			final int r = right[t];
+			if (l < -1 || l >= n || r < -1 || r >= n || l != -1 && (l == r || parent[l] != t) || r != -1 && parent[r] != t) {
+				return false;
+			}
+		}
+		// every node is now the child of at most one link, so the walk visits each node at most once; a node it never
+		// reaches is on a cycle of its own
+		final int[] stack = new int[n];
+		int top = 0;
+		int reached = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			final int t = stack[--top];
+			reached++;
+			if (left[t] != -1) {
+				stack[top++] = left[t];
+			}
+			if (right[t] != -1) {
+				stack[top++] = right[t];
+			}
+		}
+		return reached == n;
+	}
+
+	// buffered writer of an index file
+	static final class Out implements Closeable {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+		Out(final Path file, final int magic) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE);
+			putInt(magic);
+			putInt(VERSION);
+		}
+
+		void putInt(final int value) throws IOException {
+			if (buffer.remaining() < 4) {
+				flush();
+			}
+			buffer.putInt(value);
+		}
+
+		// writes the first n ints of an array
+		void putInts(final int[] a, final int n) throws IOException {
+			for (int i = 0; i < n;) {
+				if (buffer.remaining() < 4) {
+					flush();
+				}
+				final int chunk = Math.min(n - i, buffer.remaining() / 4);
+				buffer.asIntBuffer().put(a, i, chunk);
+				buffer.position(buffer.position() + 4 * chunk);
+				i += chunk;
+			}
+		}
+
+		// writes the first n longs of an array
+		void putLongs(final long[] a, final int n) throws IOException {
+			for (int i = 0; i < n;) {
+				if (buffer.remaining() < 8) {
+					flush();
+				}
+				final int chunk = Math.min(n - i, buffer.remaining() / 8);
+				buffer.asLongBuffer().put(a, i, chunk);
+				buffer.position(buffer.position() + 8 * chunk);
+				i += chunk;
+			}
+		}
+
+		void putByte(final byte value) throws IOException {
+			if (!buffer.hasRemaining()) {
+				flush();
+			}
+			buffer.put(value);
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package kdtree;
+
+// Bounded max-heap of int items keyed by int distances, for k nearest neighbour searches. It keeps the capacity items
+// with the smallest keys seen since the last reset, ties broken by the smaller item, and its root is the worst of them,
+// which is the search bound once the heap is full. The arrays are reused across searches, so a search allocates
+// nothing unless it asks for more neighbours than any before it.
+
+final class IntMaxHeap {
+
+	private int[] items = new int[0];
+	private int[] keys = new int[0];
+	private int size;
+	private int capacity;
+
+	void reset(final int capacity) {
+		if (items.length < capacity) {
+			items = new int[capacity];
+			keys = new int[capacity];
+		}
+		this.capacity = capacity;
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isFull() {
+		return size == capacity;
+	}
+
+	// largest key held; only meaningful while the heap is not empty
+	int maxKey() {
+		return keys[0];
+	}
+
+	void offer(final int item, final int key) {
+		if (size < capacity) {
+			siftUp(size++, item, key);
+		} else if (capacity > 0 && before(key, item, keys[0], items[0])) {
+			siftDown(0, item, key);
+		}
+	}
+
+	// empties the heap into out, smallest key first, and returns how many items there were
+	int drain(final int[] out) {
+		final int n = size;
+		while (size > 0) {
+			out[size - 1] = items[0];
+			size--;
+			if (size > 0) {
+				siftDown(0, items[size], keys[size]);
+			}
+		}
+		return n;
+	}
+
+	private void siftUp(int i, final int item, final int key) {
+		while (i > 0) {
+			final int up = i - 1 >>> 1;
+			if (!before(keys[up], items[up], key, item)) {
+				break;
+			}
+			items[i] = items[up];
+			keys[i] = keys[up];
+			i = up;
+		}
+		items[i] = item;
+		keys[i] = key;
+	}
+
+	private void siftDown(int i, final int item, final int key) {
+		final int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			final int right = child + 1;
+			if (right < size && before(keys[child], items[child], keys[right], items[right])) {
+				child = right;
+			}
+			if (!before(key, item, keys[child], items[child])) {
+				break;
+			}
+			items[i] = items[child];
+			keys[i] = keys[child];
+			i = child;
+		}
+		items[i] = item;
+		keys[i] = key;
+	}
+
+	// whether (key, item) comes before (otherKey, otherItem) in nearest first order
+	private static boolean before(final int key, final int item, final int otherKey, final int otherItem) {
+		return key < otherKey || key == otherKey && item < otherItem;
+	}
+}
@@ -1,8 +1,6 @@
 package kdtree;
 
-import java.util.OptionalInt;
-import java.util.Vector;
-import java.util.stream.IntStream;
+import java.util.function.Consumer;
 
 class KDNode {
 
@@ -15,6 +13,9 @@ class KDNode {
 
 	protected boolean deleted;
 
+	// nodes in the subtree rooted here, this one included, and how many of them are deleted
+	protected int size, dead;
+
 	// Method ins translated from 352.ins.c of Gonnet & Baeza-Yates
 	protected static KDNode ins(final HPoint key, final Object val, KDNode t, final int lev, final int K) throws KeyDuplicateException {
 
@@ -27,6 +28,7 @@ class KDNode {
 			// "re-insert"
 			if (t.deleted) {
 				t.deleted = false;
+				t.dead--;
 				t.v = val;
 			} else {
 				throw new KeyDuplicateException();
@@ -35,13 +37,29 @@ class KDNode {
 
 		else if (key.coord[lev] > t.k.coord[lev]) {
 			t.right = ins(key, val, t.right, (lev + 1) % K, K);
+			t.recount();
 		} else {
 			t.left = ins(key, val, t.left, (lev + 1) % K, K);
+			t.recount();
 		}
 
 		return t;
 	}
 
+	// works out the counts of this node's subtree from those of its children
+	protected void recount() {
+		size = 1;
+		dead = deleted ? 1 : 0;
+		if (left != null) {
+			size += left.size;
+			dead += left.dead;
+		}
+		if (right != null) {
+			size += right.size;
+			dead += right.dead;
+		}
+	}
+
 	// Method srch translated from 352.srch.c of Gonnet & Baeza-Yates
 	protected static KDNode srch(final HPoint key, KDNode t, final int K) {
 
@@ -59,140 +77,76 @@ class KDNode {
 		return null;
 	}
 
-	// Method rsearch translated from 352.range.c of Gonnet & Baeza-Yates
-	protected static void rsearch(final HPoint lowk, final HPoint uppk, final KDNode t, final int lev, final int K, final Vector<KDNode> v) {
+	// Method rsearch translated from 352.range.c of Gonnet & Baeza-Yates. Live nodes in range are handed to the visitor
+	// as they are found.
+	protected static void rsearch(final int[] lowk, final int[] uppk, final KDNode t, final int lev, final int K, final Consumer<Object> visitor) {
 
 		if (t == null) {
 			return;
 		}
-		if (lowk.coord[lev] <= t.k.coord[lev]) {
-			rsearch(lowk, uppk, t.left, (lev + 1) % K, K, v);
+		final int[] key = t.k.coord;
+		if (lowk[lev] <= key[lev]) {
+			rsearch(lowk, uppk, t.left, (lev + 1) % K, K, visitor);
 		}
-		IntStream is = IntStream.range(0, K);
-		OptionalInt j = is.filter(element -> lowk.coord[element] > t.k.coord[element] || uppk.coord[element] < t.k.coord[element]).findFirst();
-		if (j.getAsInt() == K) {
-			v.add(t);
+		if (!t.deleted && inRange(lowk, uppk, key)) {
+			visitor.accept(t.v);
 		}
-		if (uppk.coord[lev] > t.k.coord[lev]) {
-			rsearch(lowk, uppk, t.right, (lev + 1) % K, K, v);
+		if (uppk[lev] > key[lev]) {
+			rsearch(lowk, uppk, t.right, (lev + 1) % K, K, visitor);
 		}
 	}
 
-	// Method Nearest Neighbor from Andrew Moore's thesis. Numbered
-	// comments are direct quotes from there. Step "SDL" is added to
-	// make the algorithm work correctly. NearestNeighborList solution
-	// courtesy of Bjoern Heckel.
-	protected static void nnbr(final KDNode kd, final HPoint target, final HRect hr, double max_dist_sqd, final int lev, final int K,
-			final NearestNeighborList nnl) {
-
-		// 1. if kd is empty then set dist-sqd to infinity and exit.
-		if (kd == null) {
-			return;
-		}
-
-		// 2. s := split field of kd
-		final int s = lev % K;
-
-		// 3. pivot := dom-elt field of kd
-		final HPoint pivot = kd.k;
-		final double pivot_to_target = HPoint.sqrdist(pivot, target);
-
-		// 4. Cut hr into to sub-hyperrectangles left-hr and right-hr.
-		// The cut plane is through pivot and perpendicular to the s
-		// dimension.
-		final HRect left_hr = hr; // optimize by not cloning
-		final HRect right_hr = (HRect) hr.clone();
-		left_hr.max.coord[s] = pivot.coord[s];
-		right_hr.min.coord[s] = pivot.coord[s];
-
-		// 5. target-in-left := target_s <= pivot_s
-		final boolean target_in_left = target.coord[s] < pivot.coord[s];
-
-		KDNode nearer_kd;
-		HRect nearer_hr;
-		KDNode further_kd;
-		HRect further_hr;
-
-		// 6. if target-in-left then
-		// 6.1. nearer-kd := left field of kd and nearer-hr := left-hr
-		// 6.2. further-kd := right field of kd and further-hr := right-hr
-		if (target_in_left) {
-			nearer_kd = kd.left;
-			nearer_hr = left_hr;
-			further_kd = kd.right;
-			further_hr = right_hr;
-		}
-		//
-		// 7. if not target-in-left then
-		// 7.1. nearer-kd := right field of kd and nearer-hr := right-hr
-		// 7.2. further-kd := left field of kd and further-hr := left-hr
-		else {
-			nearer_kd = kd.right;
-			nearer_hr = right_hr;
-			further_kd = kd.left;
-			further_hr = left_hr;
+	private static boolean inRange(final int[] lowk, final int[] uppk, final int[] key) {
+		for (int i = 0; i < key.length; ++i) {
+			if (lowk[i] > key[i] || uppk[i] < key[i]) {
+				return false;
+			}
 		}
+		return true;
+	}
 
-		// 8. Recursively call Nearest Neighbor with paramters
-		// (nearer-kd, target, nearer-hr, max-dist-sqd), storing the
-		// results in nearest and dist-sqd
-		nnbr(nearer_kd, target, nearer_hr, max_dist_sqd, lev + 1, K, nnl);
-
-		double dist_sqd;
+	// Nearest neighbour search after Arya & Mount's incremental distance calculation. Instead of cutting and cloning a
+	// hyper-rectangle at every node, q.off holds the distance from the target to the current cell along each axis and
+	// rd the squared distance to the cell, both updated in place when the search crosses a splitting plane. Distances
+	// are exact integers, weighted per axis by q.weights, and nothing is allocated per node.
+	protected static void nnbr(final KDNode kd, final int[] target, final long rd, final int lev, final int K, final NearestQuery q) {
 
-		if (!nnl.isCapacityReached()) {
-			dist_sqd = Double.MAX_VALUE;
-		} else {
-			dist_sqd = nnl.getMaxPriority();
+		// empty, or no part of this cell is close enough to matter
+		if (kd == null || rd >= q.limit()) {
+			return;
 		}
 
-		// 9. max-dist-sqd := minimum of max-dist-sqd and dist-sqd
-		max_dist_sqd = Math.min(max_dist_sqd, dist_sqd);
-
-		// 10. A nearer point could only lie in further-kd if there were some
-		// part of further-hr within distance sqrt(max-dist-sqd) of
-		// target. If this is the case then
-		final HPoint closest = further_hr.closest(target);
-		if (HPoint.sqrdist(closest, target) < max_dist_sqd) {
-
-			// 10.1 if (pivot-target)^2 < dist-sqd then
-			if (pivot_to_target < dist_sqd) {
-
-				// 10.1.2 dist-sqd = (pivot-target)^2
-				dist_sqd = pivot_to_target;
-
-				// add to nnl
-				if (!kd.deleted) {
-					nnl.insert(kd, dist_sqd);
-				}
-
-				// 10.1.3 max-dist-sqd = dist-sqd
-				// max_dist_sqd = dist_sqd;
-				if (nnl.isCapacityReached()) {
-					max_dist_sqd = nnl.getMaxPriority();
-				} else {
-					max_dist_sqd = Double.MAX_VALUE;
-				}
-			}
+		q.visited++;
+		final int[] pivot = kd.k.coord;
+		if (!kd.deleted) {
+			q.distances++;
+			q.offer(kd, sqrdist(pivot, target, q.weights));
+		}
 
-			// 10.2 Recursively call Nearest Neighbor with parameters
-			// (further-kd, target, further-hr, max-dist_sqd),
-			// storing results in temp-nearest and temp-dist-sqd
-			nnbr(further_kd, target, further_hr, max_dist_sqd, lev + 1, K, nnl);
-			final double temp_dist_sqd = nnl.getMaxPriority();
+		// keys equal on the split axis were inserted to the left
+		final long diff = (long) target[lev] - pivot[lev];
+		final KDNode nearer = diff <= 0 ? kd.left : kd.right;
+		final KDNode further = diff <= 0 ? kd.right : kd.left;
+		final int next = lev + 1 == K ? 0 : lev + 1;
 
-			// 10.3 If tmp-dist-sqd < dist-sqd then
-			if (temp_dist_sqd < dist_sqd) {
+		nnbr(nearer, target, rd, next, K, q);
 
-				// 10.3.1 nearest := temp_nearest and dist_sqd := temp_dist_sqd
-				dist_sqd = temp_dist_sqd;
-			}
+		if (further != null) {
+			// the further cell is at least |diff| away along the split axis
+			final long old = q.off[lev];
+			q.off[lev] = diff;
+			nnbr(further, target, rd + q.weights[lev] * (diff * diff - old * old), next, K, q);
+			q.off[lev] = old;
 		}
+	}
 
-		// SDL: otherwise, current point is nearest
-		else if (pivot_to_target < max_dist_sqd) {
-			dist_sqd = pivot_to_target;
+	private static long sqrdist(final int[] x, final int[] y, final long[] weights) {
+		long dist = 0;
+		for (int i = 0; i < x.length; ++i) {
+			final long diff = (long) x[i] - y[i];
+			dist += weights[i] * diff * diff;
 		}
+		return dist;
 	}
 
 	// constructor is used only by class; other methods are static
@@ -202,6 +156,7 @@ class KDNode {
 		left = null;
 		right = null;
 		deleted = false;
+		size = 1;
 	}
 
 	protected String toString(final int depth) {
@@ -26,7 +26,10 @@ package kdtree;
  * http://www.cs.wlu.edu/~levy/software/kd/
  */
 
-import java.util.Vector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 /**
  * KDTree is a class supporting KD-tree insertion, deletion, equality search, range search, and nearest neighbor(s)
@@ -56,6 +59,32 @@ public class KDTree {
 	// count of nodes
 	private int m_count;
 
+	// reusable nearest neighbour search state, per thread
+	private final ThreadLocal<NearestQuery> m_query;
+
+	// 1 / (1 + epsilon)^2, see setEpsilon()
+	private double m_shrink = 1;
+
+	// weight of each axis in squared distances, see setWeights()
+	private long[] m_weights;
+
+	// cost counters, or null when not counting
+	private TreeStats m_stats;
+
+	/**
+	 * Default share of deleted nodes above which a subtree is rebuilt, see {@link #setMaxDeadShare(double)}.
+	 */
+	public static final double DEFAULT_MAX_DEAD_SHARE = 0.5;
+
+	// subtrees smaller than this are never rebuilt; they cost little however many of their nodes are deleted
+	private static final int MIN_REBUILD_SIZE = 8;
+
+	private double m_maxDead = DEFAULT_MAX_DEAD_SHARE;
+
+	// path from the root to the node being deleted, and the live nodes of the subtree being rebuilt; both reused
+	private KDNode[] m_path = new KDNode[32];
+	private KDNode[] m_live = new KDNode[0];
+
 	/**
 	 * Creates a KD-tree with specified number of dimensions.
 	 *
@@ -66,6 +95,9 @@ public class KDTree {
 
 		m_K = k;
 		m_root = null;
+		m_weights = new long[k];
+		Arrays.fill(m_weights, 1);
+		m_query = ThreadLocal.withInitial(() -> new NearestQuery(k));
 	}
 
 	/**
@@ -154,10 +186,8 @@ public class KDTree {
 			if (t == null) {
 				throw new KeyMissingException();
 			} else {
-				t.deleted = true;
+				remove(t);
 			}
-
-			m_count--;
 		}
 	}
 
@@ -165,6 +195,117 @@ public class KDTree {
 		return m_count;
 	}
 
+	/**
+	 * Starts or stops counting the cost of searches and rebuilds. While counters are attached every search adds the
+	 * nodes it visited and the distances it computed to them; with none attached the tree counts nothing beyond a few
+	 * fields of its per-thread search state.
+	 *
+	 * @param stats
+	 *            counters to add to, possibly shared with other trees, or null to stop counting
+	 */
+	public void setStats(final TreeStats stats) {
+		m_stats = stats;
+	}
+
+	/**
+	 * @return the counters attached by {@link #setStats(TreeStats)}, or null
+	 */
+	public TreeStats getStats() {
+		return m_stats;
+	}
+
+	/**
+	 * Walks the tree to take a snapshot of its structure. The walk must not run concurrently with modifications.
+	 *
+	 * @return node counts and depth histogram
+	 */
+	public TreeShape shape() {
+		final TreeShape.Builder shape = new TreeShape.Builder();
+		final ArrayDeque<KDNode> nodes = new ArrayDeque<KDNode>();
+		final ArrayDeque<Integer> depths = new ArrayDeque<Integer>();
+		if (m_root != null) {
+			nodes.push(m_root);
+			depths.push(0);
+		}
+		while (!nodes.isEmpty()) {
+			final KDNode kd = nodes.pop();
+			final int depth = depths.pop();
+			shape.add(depth, !kd.deleted);
+			if (kd.left != null) {
+				nodes.push(kd.left);
+				depths.push(depth + 1);
+			}
+			if (kd.right != null) {
+				nodes.push(kd.right);
+				depths.push(depth + 1);
+			}
+		}
+		return shape.build();
+	}
+
+	/**
+	 * Sets how sparse a subtree may get before it is rebuilt. Whenever a deletion leaves more than this share of the
+	 * nodes of a subtree deleted, the largest such subtree on the path to the deleted node is rebuilt balanced from
+	 * its live nodes, scapegoat style. Deletions made while filling tend to cluster in a few regions of key space, so
+	 * the work goes where the deletions are instead of into rebuilding the whole tree, and the tree never needs
+	 * {@link #pruneAndRebalance(HPoint)}. Each rebuild counts as one in the {@link TreeStats}.
+	 *
+	 * @param share
+	 *            share of deleted nodes above which a subtree is rebuilt; 1 never rebuilds
+	 *
+	 * @throws IllegalArgumentException
+	 *             if share is not in (0, 1]
+	 */
+	public void setMaxDeadShare(final double share) throws IllegalArgumentException {
+		if (!(share > 0 && share <= 1)) {
+			throw new IllegalArgumentException("Dead share must be in (0, 1]");
+		}
+		m_maxDead = share;
+	}
+
+	/**
+	 * Weights the axes in the squared distances nearest neighbor searches minimise, which is the same as scaling each
+	 * coordinate of every key by the square root of its weight. Cell bounds are weighted alike, so pruning stays exact.
+	 * All weights are 1 by default.
+	 *
+	 * @param weights
+	 *            positive weight of each axis
+	 *
+	 * @throws KeySizeException
+	 *             if weights.length mismatches K
+	 */
+	public void setWeights(final int[] weights) throws KeySizeException {
+		if (weights.length != m_K) {
+			throw new KeySizeException();
+		}
+		final long[] w = new long[m_K];
+		for (int i = 0; i < m_K; i++) {
+			if (weights[i] <= 0) {
+				throw new IllegalArgumentException("Weights must be positive");
+			}
+			w[i] = weights[i];
+		}
+		m_weights = w;
+	}
+
+	/**
+	 * Makes nearest neighbor searches approximate. A search skips every cell that cannot improve on the best key found
+	 * so far by more than a factor of <TT>1 + epsilon</TT> in distance, so the key it returns is at most that many times
+	 * as far from the target as the nearest one. The default of 0 gives exact searches.
+	 *
+	 * @param epsilon
+	 *            allowed relative error in distance
+	 *
+	 * @throws IllegalArgumentException
+	 *             if epsilon is negative
+	 */
+	public void setEpsilon(final double epsilon) throws IllegalArgumentException {
+		if (!(epsilon >= 0)) {
+			throw new IllegalArgumentException("Epsilon cannot be negative");
+		}
+		m_shrink = 1 / ((1 + epsilon) * (1 + epsilon));
+	}
+
 	/**
 	 * Find KD-tree node whose key is nearest neighbor to key. Implements the Nearest Neighbor algorithm (Table 6.4) of
 	 *
@@ -180,6 +321,9 @@ public class KDTree {
 	 * }
 	 * </PRE>
 	 *
+	 * The search keeps per-axis distance bounds instead of cloning hyper-rectangles, and reuses per-thread state, so it
+	 * allocates nothing.
+	 *
 	 * @param key
 	 *            key for KD-tree node
 	 *
@@ -189,7 +333,51 @@ public class KDTree {
 	 *             if key.length mismatches K
 	 */
 	public Object nearest(final int[] key) throws KeySizeException {
-		return nearest(key, 1)[0];
+
+		if (key.length != m_K) {
+			throw new KeySizeException();
+		}
+
+		final NearestQuery q = m_query.get();
+		q.reset(0, m_shrink, m_weights);
+		KDNode.nnbr(m_root, key, 0, 0, m_K, q);
+		record(q);
+		final KDNode kd = q.best;
+		q.best = null;
+
+		return kd == null ? null : kd.v;
+	}
+
+	/**
+	 * Find the KD-tree node whose key is nearest neighbor to key and delete it. Same as {@link #nearest(int[])} followed
+	 * by {@link #delete(int[])}, but the node found by the search is marked directly instead of being searched for again.
+	 *
+	 * @param key
+	 *            key for KD-tree node
+	 *
+	 * @return object at node nearest to key, or null if the tree is empty
+	 *
+	 * @throws KeySizeException
+	 *             if key.length mismatches K
+	 */
+	public Object nearestAndRemove(final int[] key) throws KeySizeException {
+
+		if (key.length != m_K) {
+			throw new KeySizeException();
+		}
+
+		final NearestQuery q = m_query.get();
+		q.reset(0, m_shrink, m_weights);
+		KDNode.nnbr(m_root, key, 0, 0, m_K, q);
+		record(q);
+		final KDNode kd = q.best;
+		q.best = null;
+
+		if (kd == null) {
+			return null;
+		}
+		remove(kd);
+		return kd.v;
 	}
 
 	/**
@@ -214,26 +402,44 @@ public class KDTree {
 			throw new IllegalArgumentException("Number of neighbors cannot" + " be negative or greater than number of nodes");
 		}
 
-		if (key.length != m_K) {
-			throw new KeySizeException();
-		}
-
 		final Object[] nbrs = new Object[n];
-		final NearestNeighborList nnl = new NearestNeighborList(n);
+		nearest(key, n, nbrs);
+		return nbrs;
+	}
 
-		// initial call is with infinite hyper-rectangle and max distance
-		final HRect hr = HRect.infiniteHRect(key.length);
-		final int max_dist_sqd = Integer.MAX_VALUE;
-		final HPoint keyp = new HPoint(key);
+	/**
+	 * Find KD-tree nodes whose keys are <I>n</I> nearest neighbors to key, writing their objects into an array supplied
+	 * by the caller. The neighbors are kept in a bounded heap that is reused by later searches on the same thread, so
+	 * this allocates no more than {@link #nearest(int[])} does once the heap has grown to <I>n</I>.
+	 *
+	 * @param key
+	 *            key for KD-tree node
+	 * @param n
+	 *            how many neighbors to find
+	 * @param out
+	 *            receives the objects, in ascending order of distance to key; at least <I>n</I> long
+	 *
+	 * @return the number of objects found, less than <I>n</I> only if the tree holds fewer
+	 *
+	 * @throws KeySizeException
+	 *             if key.length mismatches K
+	 */
+	public int nearest(final int[] key, final int n, final Object[] out) throws KeySizeException {
 
-		KDNode.nnbr(m_root, keyp, hr, max_dist_sqd, 0, m_K, nnl);
+		if (key.length != m_K) {
+			throw new KeySizeException();
+		}
 
-		for (int i = 0; i < n; ++i) {
-			final KDNode kd = (KDNode) nnl.removeHighest();
-			nbrs[n - i - 1] = kd.v;
+		if (n <= 0) {
+			return 0;
 		}
 
-		return nbrs;
+		// initial call is with the target inside the root cell
+		final NearestQuery q = m_query.get();
+		q.reset(n, m_shrink, m_weights);
+		KDNode.nnbr(m_root, key, 0, 0, m_K, q);
+		record(q);
+		return q.drain(out);
 	}
 
 	/**
@@ -250,6 +456,26 @@ public class KDTree {
 	 *             on mismatch among lowk.length, uppk.length, or K
 	 */
 	public Object[] range(final int[] lowk, final int[] uppk) throws KeySizeException {
+		final ArrayList<Object> v = new ArrayList<Object>();
+		range(lowk, uppk, v::add);
+		return v.toArray();
+	}
+
+	/**
+	 * Range search in a KD-tree that hands each value to a visitor instead of collecting them. Deleted nodes are
+	 * skipped, and nothing is allocated per node.
+	 *
+	 * @param lowk
+	 *            lower-bounds for key
+	 * @param uppk
+	 *            upper-bounds for key
+	 * @param visitor
+	 *            called with each object whose key falls in range [lowk,uppk]
+	 *
+	 * @throws KeySizeException
+	 *             on mismatch among lowk.length, uppk.length, or K
+	 */
+	public void range(final int[] lowk, final int[] uppk, final Consumer<Object> visitor) throws KeySizeException {
 
 		if (lowk.length != uppk.length) {
 			throw new KeySizeException();
@@ -260,14 +486,7 @@ public class KDTree {
 		}
 
 		else {
-			final Vector<KDNode> v = new Vector<KDNode>();
-			KDNode.rsearch(new HPoint(lowk), new HPoint(uppk), m_root, 0, m_K, v);
-			final Object[] o = new Object[v.size()];
-			for (int i = 0; i < v.size(); ++i) {
-				final KDNode n = v.elementAt(i);
-				o[i] = n.v;
-			}
-			return o;
+			KDNode.rsearch(lowk, uppk, m_root, 0, m_K, visitor);
 		}
 	}
 
@@ -277,18 +496,136 @@ public class KDTree {
 	}
 
 	/**
-	 * Removes deleted nodes and rebalances the tree based around a point.
+	 * Removes deleted nodes and rebalances the tree based around a point. Subtrees are already rebuilt as deletions
+	 * thin them out, see {@link #setMaxDeadShare(double)}, so this is only needed to reorder the whole tree.
 	 * 
 	 * @param point
 	 * @return
 	 */
 	public KDTree pruneAndRebalance(final HPoint point) {
+		final long start = m_stats == null ? 0 : System.nanoTime();
 		final KDTree newTree = new KDTree(m_K);
+		newTree.m_shrink = m_shrink;
+		newTree.m_stats = m_stats;
+		newTree.m_maxDead = m_maxDead;
+		newTree.m_weights = m_weights;
 
 		if (m_root != null) {
 			m_root.addTo(newTree, point);
 		}
 
+		if (m_stats != null) {
+			m_stats.recordRebuild(System.nanoTime() - start);
+		}
 		return newTree;
 	}
+
+	// marks a live node deleted, counting it in every subtree on the path to it, and rebuilds the largest of them that
+	// has become too sparse
+	private void remove(final KDNode kd) {
+		kd.deleted = true;
+		m_count--;
+
+		final int[] key = kd.k.coord;
+		int depth = 0;
+		for (KDNode t = m_root;; depth++) {
+			if (depth == m_path.length) {
+				m_path = Arrays.copyOf(m_path, depth * 2);
+			}
+			m_path[depth] = t;
+			t.dead++;
+			if (t == kd) {
+				break;
+			}
+			final int lev = depth % m_K;
+			t = key[lev] > t.k.coord[lev] ? t.right : t.left;
+		}
+
+		for (int d = 0; d <= depth; d++) {
+			final KDNode t = m_path[d];
+			if (t.size >= MIN_REBUILD_SIZE && t.dead > t.size * m_maxDead) {
+				rebuild(d);
+				break;
+			}
+		}
+		Arrays.fill(m_path, 0, depth + 1, null);
+	}
+
+	// replaces the subtree at depth d of the deletion path with a balanced one of its live nodes
+	private void rebuild(final int d) {
+		final long start = m_stats == null ? 0 : System.nanoTime();
+		final KDNode top = m_path[d];
+		final int n = top.size - top.dead;
+		if (m_live.length < n) {
+			m_live = new KDNode[Math.max(n, m_live.length * 2)];
+		}
+		collect(top, 0);
+		final KDNode built = build(0, n, d % m_K);
+		Arrays.fill(m_live, 0, n, null);
+
+		if (d == 0) {
+			m_root = built;
+		} else if (m_path[d - 1].left == top) {
+			m_path[d - 1].left = built;
+		} else {
+			m_path[d - 1].right = built;
+		}
+		for (int i = 0; i < d; i++) {
+			m_path[i].size -= top.dead;
+			m_path[i].dead -= top.dead;
+		}
+
+		if (m_stats != null) {
+			m_stats.recordRebuild(System.nanoTime() - start);
+		}
+	}
+
+	// gathers the live nodes of a subtree into m_live from position n on and returns the position after them
+	private int collect(final KDNode t, int n) {
+		if (t.left != null) {
+			n = collect(t.left, n);
+		}
+		if (!t.deleted) {
+			m_live[n++] = t;
+		}
+		if (t.right != null) {
+			n = collect(t.right, n);
+		}
+		return n;
+	}
+
+	// links m_live[from, to) into a balanced subtree split on axis lev at its root. Keys equal to a node's on its axis
+	// must lie to its left, so the root is the last node of a run of equal coordinates: the run holding the median or the
+	// one before it, whichever ends nearer the median.
+	private KDNode build(final int from, final int to, final int lev) {
+		if (from == to) {
+			return null;
+		}
+		Arrays.sort(m_live, from, to, (a, b) -> Integer.compare(a.k.coord[lev], b.k.coord[lev]));
+
+		final int mid = from + to >>> 1;
+		final int c = m_live[mid].k.coord[lev];
+		int first = mid;
+		while (first > from && m_live[first - 1].k.coord[lev] == c) {
+			first--;
+		}
+		int last = mid;
+		while (last + 1 < to && m_live[last + 1].k.coord[lev] == c) {
+			last++;
+		}
+		final int m = first > from && mid - (first - 1) < last - mid ? first - 1 : last;
+
+		final KDNode t = m_live[m];
+		final int next = (lev + 1) % m_K;
+		t.left = build(from, m, next);
+		t.right = build(m + 1, to, next);
+		t.recount();
+		return t;
+	}
+
+	private void record(final NearestQuery q) {
+		if (m_stats != null) {
+			m_stats.recordQuery(q.visited, q.distances);
+		}
+	}
 }
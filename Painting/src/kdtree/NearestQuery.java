@@ -0,0 +1,131 @@
+package kdtree;
+
+// State of a nearest neighbour search. KDTree keeps one per thread and reuses it, so searching for the single nearest
+// neighbour allocates nothing, and searching for n nearest neighbours only allocates when n is larger than in any
+// earlier search on the thread.
+
+class NearestQuery {
+
+	// distance from the target to the cell being searched, per axis
+	final long[] off;
+
+	// result of a single nearest neighbour search
+	KDNode best;
+	long bestDist;
+
+	// result of an n nearest neighbour search: a bounded max-heap on distance, its root the worst node kept. Unused
+	// while capacity is 0.
+	private KDNode[] heap = new KDNode[0];
+	private long[] heapDist = new long[0];
+	private int size;
+	private int capacity;
+
+	// 1 / (1 + epsilon)^2 of an approximate search, 1 for an exact one
+	double shrink = 1;
+
+	// weight of each axis in squared distances
+	long[] weights;
+
+	// cost of the search so far, for TreeStats
+	long visited;
+	long distances;
+
+	NearestQuery(final int k) {
+		off = new long[k];
+	}
+
+	// prepares a search for the nearest n neighbours, or just the nearest if n is 0
+	void reset(final int n, final double shrink, final long[] weights) {
+		for (int i = 0; i < off.length; ++i) {
+			off[i] = 0;
+		}
+		best = null;
+		bestDist = Long.MAX_VALUE;
+		if (heap.length < n) {
+			heap = new KDNode[n];
+			heapDist = new long[n];
+		}
+		size = 0;
+		capacity = n;
+		this.shrink = shrink;
+		this.weights = weights;
+		visited = 0;
+		distances = 0;
+	}
+
+	// squared distance beyond which nothing can improve the result
+	long bound() {
+		if (capacity == 0) {
+			return bestDist;
+		}
+		return size == capacity ? heapDist[0] : Long.MAX_VALUE;
+	}
+
+	// squared distance a cell must come closer than to be searched. An approximate search only looks at cells that
+	// could beat the result by more than a factor of 1 + epsilon.
+	long limit() {
+		final long bound = bound();
+		return shrink == 1 || bound == Long.MAX_VALUE ? bound : (long) Math.ceil(bound * shrink);
+	}
+
+	void offer(final KDNode kd, final long dist) {
+		if (capacity == 0) {
+			if (dist < bestDist) {
+				bestDist = dist;
+				best = kd;
+			}
+		} else if (size < capacity) {
+			siftUp(size++, kd, dist);
+		} else if (dist < heapDist[0]) {
+			siftDown(0, kd, dist);
+		}
+	}
+
+	// moves the values of the nodes found into out, nearest first, and returns how many there were. Node references
+	// are cleared so the query does not keep deleted nodes alive.
+	int drain(final Object[] out) {
+		final int n = size;
+		while (size > 0) {
+			out[size - 1] = heap[0].v;
+			size--;
+			if (size > 0) {
+				siftDown(0, heap[size], heapDist[size]);
+			}
+			heap[size] = null;
+		}
+		return n;
+	}
+
+	private void siftUp(int i, final KDNode kd, final long dist) {
+		while (i > 0) {
+			final int up = i - 1 >>> 1;
+			if (heapDist[up] >= dist) {
+				break;
+			}
+			heap[i] = heap[up];
+			heapDist[i] = heapDist[up];
+			i = up;
+		}
+		heap[i] = kd;
+		heapDist[i] = dist;
+	}
+
+	private void siftDown(int i, final KDNode kd, final long dist) {
+		final int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			final int right = child + 1;
+			if (right < size && heapDist[right] > heapDist[child]) {
+				child = right;
+			}
+			if (dist >= heapDist[child]) {
+				break;
+			}
+			heap[i] = heap[child];
+			heapDist[i] = heapDist[child];
+			i = child;
+		}
+		heap[i] = kd;
+		heapDist[i] = dist;
+	}
+}
@@ -0,0 +1,980 @@
+package kdtree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import palette.ColorIndex;
+import palette.Metric;
+
+/**
+ * RGBTree is a 3-dimensional KD-tree specialised for packed 24-bit RGB keys (<TT>0xRRGGBB</TT>). Nodes are stored as
+ * parallel <TT>int</TT> arrays indexed by node number instead of as objects, so a colour costs a few array slots rather
+ * than a KDNode, an HPoint, an <TT>int[]</TT> key and a boxed value. Splitting dimension is red, green, blue by depth
+ * modulo 3. Semantics otherwise follow {@link KDTree}:
+ *
+ * <UL>
+ * <LI>The key is the value; callers get back the packed colour itself.
+ * <LI>Deleting a key only marks its node as deleted, and a deleted key may be re-inserted.
+ * </UL>
+ *
+ * Every node also tracks how many live keys its subtree holds and the tightest box around them. Searches skip subtrees
+ * whose keys are all deleted and prune against the shrunken boxes, so deleted keys stop costing query time and the tree
+ * does not need to be rebuilt as it drains.
+ *
+ * A whole palette should be loaded with {@link #RGBTree(int[])}, which builds a balanced tree in parallel. Inserting
+ * keys one by one in sorted order produces a badly skewed tree.
+ */
+public class RGBTree implements ColorIndex {
+
+	// marks a missing child, and is returned by nearest() for an empty tree
+	public static final int NONE = -1;
+
+	// first int of files written by save(), "RGBT"
+	public static final int MAGIC = 0x52474254;
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	// subtrees with more keys than this are built as separate fork/join tasks
+	private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+	// nearest neighbour search result: squared distance in the high word, node in the low word. NO_MATCH decodes to
+	// NONE and a distance nothing can reach.
+	private static final long NO_MATCH = Long.MAX_VALUE;
+
+	// pruning bounds are scaled by 1 / (1 + epsilon)^2 in fixed point with SHIFT fraction bits, rounding up so
+	// that nothing is pruned that could beat the best by more than epsilon. EXACT means no scaling.
+	private static final int SHIFT = 16;
+	private static final int EXACT = 1 << SHIFT;
+
+	// packed key of each node
+	private int[] keys;
+
+	// child and parent node indices, or NONE
+	private int[] left;
+	private int[] right;
+	private int[] parent;
+
+	// one bit per node, set once its key is deleted
+	private long[] deleted;
+
+	// count of live keys in the subtree of each node
+	private int[] live;
+
+	// per channel minimum and maximum of the live keys in the subtree of each node, packed like the keys. Only
+	// meaningful while the subtree has live keys.
+	private int[] lo;
+	private int[] hi;
+
+	private int root = NONE;
+
+	// set once keys, left, right and parent are shared with a fork, so that adding a node copies them first
+	private boolean sharedLayout;
+
+	// count of allocated nodes, deleted ones included
+	private int nodes;
+
+	// count of live keys
+	private int count;
+
+	// k nearest neighbour search state: nodes of the best keys found so far
+	private final IntMaxHeap heap = new IntMaxHeap();
+
+	// pruning bound scale of destructive searches, see setEpsilon()
+	private int shrink = EXACT;
+
+	// channel weights of the distance searches minimise, see setMetric()
+	private Metric metric = Metric.EUCLIDEAN;
+	private int wr = 1;
+	private int wg = 1;
+	private int wb = 1;
+
+	// cost counters, or null when not counting, and the cost of the current search
+	private TreeStats stats;
+	private long visited;
+	private long distances;
+
+	/**
+	 * Creates an empty tree.
+	 */
+	public RGBTree() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty tree with room for the given number of keys before its arrays have to grow.
+	 *
+	 * @param capacity
+	 *            expected number of keys
+	 */
+	public RGBTree(final int capacity) {
+		final int n = Math.max(capacity, 1);
+		keys = new int[n];
+		left = new int[n];
+		right = new int[n];
+		parent = new int[n];
+		deleted = new long[words(n)];
+		live = new int[n];
+		lo = new int[n];
+		hi = new int[n];
+	}
+
+	/**
+	 * Builds a balanced tree from many colours at once. Each subtree is split at the median of its keys on the split
+	 * axis, and large subtrees are built in parallel on the common fork/join pool. Duplicate colours are dropped.
+	 *
+	 * @param colors
+	 *            packed colours; alpha bytes are ignored
+	 */
+	public RGBTree(final int[] colors) {
+		int[] k = new int[colors.length];
+		for (int i = 0; i < k.length; i++) {
+			k[i] = colors[i] & 0xFFFFFF;
+		}
+		Arrays.parallelSort(k);
+		int n = 0;
+		for (int i = 0; i < k.length; i++) {
+			if (n == 0 || k[i] != k[n - 1]) {
+				k[n++] = k[i];
+			}
+		}
+		if (n < k.length) {
+			k = Arrays.copyOf(k, n);
+		}
+
+		final int capacity = Math.max(n, 1);
+		keys = n == 0 ? new int[capacity] : k;
+		left = new int[capacity];
+		right = new int[capacity];
+		parent = new int[capacity];
+		deleted = new long[words(capacity)];
+		live = new int[capacity];
+		lo = new int[capacity];
+		hi = new int[capacity];
+
+		nodes = n;
+		count = n;
+		final Build build = new Build(0, n, 0, NONE);
+		ForkJoinPool.commonPool().invoke(build);
+		root = build.node;
+	}
+
+	// reads a tree written by save()
+	private RGBTree(final ByteBuffer in) {
+		nodes = in.getInt();
+		root = in.getInt();
+		count = in.getInt();
+		keys = IndexFile.getInts(in, nodes);
+		left = IndexFile.getInts(in, nodes);
+		right = IndexFile.getInts(in, nodes);
+		parent = IndexFile.getInts(in, nodes);
+		live = IndexFile.getInts(in, nodes);
+		lo = IndexFile.getInts(in, nodes);
+		hi = IndexFile.getInts(in, nodes);
+		deleted = IndexFile.getLongs(in, words(nodes));
+	}
+
+	/**
+	 * Reads a tree written by {@link #save(Path)}. The file is memory-mapped and its arrays are copied out in bulk, so
+	 * this costs about as much as reading the file, far less than building the tree.
+	 *
+	 * @param file
+	 *            file to read
+	 * @return the tree, in the state it was saved in
+	 * @throws IOException
+	 *             if the file cannot be read or is not a saved RGBTree
+	 */
+	public static RGBTree load(final Path file) throws IOException {
+		final ByteBuffer in = IndexFile.map(file, MAGIC);
+		final int nodes = in.getInt(in.position());
+		if (nodes < 0 || in.remaining() < 12 + 28L * nodes + 8L * words(nodes)) {
+			throw new IOException("Truncated index file: " + file);
+		}
+		final RGBTree tree = new RGBTree(in);
+		if (!tree.isConsistent()) {
+			throw new IOException("Corrupt index file: " + file);
+		}
+		return tree;
+	}
+
+	// whether a tree read from a file links its nodes into one tree whose live counts add up, so that nothing done with
+	// it reads out of its arrays
+	private boolean isConsistent() {
+		if (count < 0 || count > nodes || !IndexFile.isTree(root, left, right, parent, nodes)) {
+			return false;
+		}
+		for (int t = 0; t < nodes; t++) {
+			if ((keys[t] & ~0xFFFFFF) != 0 || live[t] != (isDeleted(t) ? 0 : 1) + live(left[t]) + live(right[t])) {
+				return false;
+			}
+		}
+		return count == live(root);
+	}
+
+	// live keys below t, which may be NONE
+	private int live(final int t) {
+		return t == NONE ? 0 : live[t];
+	}
+
+	/**
+	 * Writes the tree to a file, layout and deleted keys included, for {@link #load(Path)} to read back.
+	 *
+	 * @param file
+	 *            file to write, replaced if it exists
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void save(final Path file) throws IOException {
+		try (IndexFile.Out out = new IndexFile.Out(file, MAGIC)) {
+			out.putInt(nodes);
+			out.putInt(root);
+			out.putInt(count);
+			out.putInts(keys, nodes);
+			out.putInts(left, nodes);
+			out.putInts(right, nodes);
+			out.putInts(parent, nodes);
+			out.putInts(live, nodes);
+			out.putInts(lo, nodes);
+			out.putInts(hi, nodes);
+			out.putLongs(deleted, words(nodes));
+		}
+	}
+
+	// fork of another tree, sharing its layout
+	private RGBTree(final RGBTree from) {
+		keys = from.keys;
+		left = from.left;
+		right = from.right;
+		parent = from.parent;
+		deleted = from.deleted.clone();
+		live = from.live.clone();
+		lo = from.lo.clone();
+		hi = from.hi.clone();
+		root = from.root;
+		nodes = from.nodes;
+		count = from.count;
+		shrink = from.shrink;
+		setMetric(from.metric);
+		sharedLayout = true;
+	}
+
+	/**
+	 * Returns a tree holding the same live colours that deletes independently of this one. Node keys and links only
+	 * change when an insert adds a node, so they are shared, and either tree copies them before it first adds one.
+	 * Re-inserting a deleted key copies nothing. The deleted bits, live counts and boxes are copied.
+	 */
+	@Override
+	public RGBTree fork() {
+		sharedLayout = true;
+		return new RGBTree(this);
+	}
+
+	/**
+	 * Inserts a colour.
+	 *
+	 * @param rgb
+	 *            packed colour; the alpha byte is ignored
+	 * @throws KeyDuplicateException
+	 *             if the colour is already in the tree
+	 */
+	public void insert(final int rgb) throws KeyDuplicateException {
+		if (!add(rgb & 0xFFFFFF)) {
+			throw new KeyDuplicateException();
+		}
+	}
+
+	/**
+	 * Marks a colour as deleted.
+	 *
+	 * @param rgb
+	 *            packed colour; the alpha byte is ignored
+	 * @throws KeyMissingException
+	 *             if no live node has the colour
+	 */
+	public void delete(final int rgb) throws KeyMissingException {
+		if (!remove(rgb)) {
+			throw new KeyMissingException();
+		}
+	}
+
+	@Override
+	public boolean remove(final int rgb) {
+		final int t = search(rgb & 0xFFFFFF);
+		if (t == NONE) {
+			return false;
+		}
+		setDeleted(t);
+		count--;
+		shrink(t);
+		return true;
+	}
+
+	/**
+	 * Finds the live colour nearest to a colour by squared euclidean distance. The search allocates nothing and keeps
+	 * no state in the tree beyond cost counters, so concurrent searches are safe as long as nothing modifies the tree,
+	 * though their counts may be lost.
+	 *
+	 * @param rgb
+	 *            packed colour; the alpha byte is ignored
+	 * @return the nearest packed colour, or {@link #NONE} if the tree is empty
+	 */
+	@Override
+	public int nearest(final int rgb) {
+		final int t = (int) nnbr(root, 0, rgb & 0xFFFFFF, NO_MATCH, EXACT);
+		record();
+		return t == NONE ? NONE : keys[t];
+	}
+
+	/**
+	 * Finds the live colour {@link #nearestAndRemove(int)} would, within the same epsilon, without deleting it. Unlike
+	 * {@link #nearest(int)} it must not run concurrently with other searches.
+	 *
+	 * @param rgb
+	 *            packed colour; the alpha byte is ignored
+	 * @return the packed colour found, or {@link #NONE} if the tree is empty
+	 */
+	public int nearestWithinEpsilon(final int rgb) {
+		final int t = (int) nnbr(root, 0, rgb & 0xFFFFFF, NO_MATCH, shrink);
+		record();
+		return t == NONE ? NONE : keys[t];
+	}
+
+	/**
+	 * Finds the live colour nearest to a colour and deletes it, in one traversal.
+	 *
+	 * @param rgb
+	 *            packed colour; the alpha byte is ignored
+	 * @return the nearest packed colour, or {@link #NONE} if the tree is empty
+	 */
+	@Override
+	public int nearestAndRemove(final int rgb) {
+		final int t = (int) nnbr(root, 0, rgb & 0xFFFFFF, NO_MATCH, shrink);
+		record();
+		if (t == NONE) {
+			return NONE;
+		}
+		setDeleted(t);
+		count--;
+		shrink(t);
+		return keys[t];
+	}
+
+	/**
+	 * Finds the <I>n</I> live colours nearest to a colour and deletes them, in one traversal.
+	 */
+	@Override
+	public int nearestAndRemove(final int rgb, final int n, final int[] out) {
+		if (n <= 0) {
+			return 0;
+		} else if (n == 1) {
+			final int c = nearestAndRemove(rgb);
+			out[0] = c;
+			return c == NONE ? 0 : 1;
+		}
+
+		heap.reset(n);
+		knnbr(root, 0, rgb & 0xFFFFFF, shrink);
+		record();
+		final int found = heap.drain(out);
+
+		for (int i = 0; i < found; i++) {
+			final int t = out[i];
+			setDeleted(t);
+			shrink(t);
+			out[i] = keys[t];
+		}
+		count -= found;
+		return found;
+	}
+
+	/**
+	 * Finds the <I>n</I> live colours nearest to a colour without deleting them. The search is exact and reuses a heap
+	 * kept in the tree, so it allocates nothing, but unlike {@link #nearest(int)} it must not run concurrently with
+	 * other searches.
+	 *
+	 * @param rgb
+	 *            packed colour; the alpha byte is ignored
+	 * @param n
+	 *            how many colours to find
+	 * @param out
+	 *            receives the packed colours, nearest first; at least <I>n</I> long
+	 * @return the number of colours found, less than <I>n</I> only if the tree holds fewer
+	 */
+	public int nearest(final int rgb, final int n, final int[] out) {
+		if (n <= 0) {
+			return 0;
+		}
+		heap.reset(n);
+		knnbr(root, 0, rgb & 0xFFFFFF, EXACT);
+		record();
+		final int found = heap.drain(out);
+		for (int i = 0; i < found; i++) {
+			out[i] = keys[out[i]];
+		}
+		return found;
+	}
+
+	/**
+	 * Walks the tree to take a snapshot of its structure, deleted nodes included. The walk must not run concurrently
+	 * with modifications.
+	 *
+	 * @return node counts and depth histogram
+	 */
+	public TreeShape shape() {
+		final TreeShape.Builder shape = new TreeShape.Builder();
+		if (root == NONE) {
+			return shape.build();
+		}
+		// depth first, with the depth of each pending node kept beside it
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = root;
+		stack[top++] = 0;
+		while (top > 0) {
+			final int depth = stack[--top];
+			final int t = stack[--top];
+			shape.add(depth, !isDeleted(t));
+			if (top + 4 > stack.length) {
+				stack = Arrays.copyOf(stack, stack.length * 2);
+			}
+			if (left[t] != NONE) {
+				stack[top++] = left[t];
+				stack[top++] = depth + 1;
+			}
+			if (right[t] != NONE) {
+				stack[top++] = right[t];
+				stack[top++] = depth + 1;
+			}
+		}
+		return shape.build();
+	}
+
+	/**
+	 * Starts or stops counting the cost of searches and rebuilds. While counters are attached every search adds the
+	 * nodes it visited and the distances it computed to them.
+	 *
+	 * @param stats
+	 *            counters to add to, possibly shared with other trees, or null to stop counting
+	 */
+	public void setStats(final TreeStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @return the counters attached by {@link #setStats(TreeStats)}, or null
+	 */
+	public TreeStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Lets {@link #nearestAndRemove(int)} settle for a colour up to <TT>1 + epsilon</TT> times as far as the nearest, by
+	 * skipping subtrees that cannot beat the best so far by more than that. {@link #nearest(int)} stays exact.
+	 */
+	@Override
+	public void setEpsilon(final double epsilon) {
+		if (!(epsilon >= 0)) {
+			throw new IllegalArgumentException("epsilon must be non-negative: " + epsilon);
+		}
+		shrink = (int) Math.ceil(EXACT / ((1 + epsilon) * (1 + epsilon)));
+	}
+
+	/**
+	 * Weights the channels in every distance and box bound the searches work out, so pruning stays exact.
+	 */
+	@Override
+	public void setMetric(final Metric metric) {
+		this.metric = metric;
+		wr = metric.red();
+		wg = metric.green();
+		wb = metric.blue();
+	}
+
+	@Override
+	public int distance(final int a, final int b) {
+		return metric.distance(a, b);
+	}
+
+	/**
+	 * Finds the live colours inside a box, handing each to a visitor. Subtrees with no live keys or whose live keys lie
+	 * outside the box are skipped, and nothing is allocated per node.
+	 *
+	 * @param low
+	 *            packed per channel lower bounds, inclusive
+	 * @param high
+	 *            packed per channel upper bounds, inclusive
+	 * @param visitor
+	 *            called with each packed colour in range
+	 * @return the number of colours in range
+	 */
+	public int range(final int low, final int high, final IntConsumer visitor) {
+		return rsearch(root, low & 0xFFFFFF, high & 0xFFFFFF, visitor);
+	}
+
+	/**
+	 * Finds the live colours inside a box, storing them in a buffer.
+	 *
+	 * @param low
+	 *            packed per channel lower bounds, inclusive
+	 * @param high
+	 *            packed per channel upper bounds, inclusive
+	 * @param out
+	 *            receives the packed colours in range, as many as fit
+	 * @return the number of colours in range, which may be more than <TT>out.length</TT>
+	 */
+	public int range(final int low, final int high, final int[] out) {
+		return rfill(root, low & 0xFFFFFF, high & 0xFFFFFF, out, 0);
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Removes deleted nodes and builds a balanced tree of the live keys. Searches already skip deleted nodes, so this
+	 * only reclaims memory and depth.
+	 *
+	 * @return the rebuilt tree
+	 */
+	@Override
+	public RGBTree rebuild() {
+		return rebuild(toArray());
+	}
+
+	/**
+	 * Builds a balanced tree of other colours with this tree's epsilon and statistics counters.
+	 */
+	@Override
+	public RGBTree rebuild(final int[] colors) {
+		final long begin = stats == null ? 0 : System.nanoTime();
+		final RGBTree tree = new RGBTree(colors);
+		tree.shrink = shrink;
+		tree.setMetric(metric);
+		tree.stats = stats;
+		if (stats != null) {
+			stats.recordRebuild(System.nanoTime() - begin);
+		}
+		return tree;
+	}
+
+	/**
+	 * Gathers the live keys with a scan of the node arrays rather than a walk of the tree.
+	 */
+	@Override
+	public int[] toArray() {
+		final int[] k = new int[count];
+		int n = 0;
+		for (int t = 0; t < nodes; t++) {
+			if (!isDeleted(t)) {
+				k[n++] = keys[t];
+			}
+		}
+		return k;
+	}
+
+	// iterative version of KDNode.ins; returns false if the key is already live. Re-inserting a deleted key leaves the
+	// layout as it is, so only adding a node copies a shared one.
+	private boolean add(final int key) {
+		if (root == NONE) {
+			ownLayout();
+			root = newNode(key, NONE);
+			count++;
+			return true;
+		}
+
+		int t = root;
+		for (int lev = 0;; lev = next(lev)) {
+			if (keys[t] == key) {
+				// "re-insert"
+				if (!isDeleted(t)) {
+					return false;
+				}
+				clearDeleted(t);
+				count++;
+				grow(t, key);
+				return true;
+			}
+
+			if (channel(key, lev) > channel(keys[t], lev)) {
+				if (right[t] == NONE) {
+					ownLayout();
+					// newNode may grow the arrays, so allocate before indexing into them
+					final int n = newNode(key, t);
+					right[t] = n;
+					break;
+				}
+				t = right[t];
+			} else {
+				if (left[t] == NONE) {
+					ownLayout();
+					final int n = newNode(key, t);
+					left[t] = n;
+					break;
+				}
+				t = left[t];
+			}
+		}
+		count++;
+		return true;
+	}
+
+	// copies the node keys and links before they change, if they are shared with a fork
+	private void ownLayout() {
+		if (sharedLayout) {
+			keys = keys.clone();
+			left = left.clone();
+			right = right.clone();
+			parent = parent.clone();
+			sharedLayout = false;
+		}
+	}
+
+	// same walk as KDNode.srch
+	private int search(final int key) {
+		int t = root;
+		for (int lev = 0; t != NONE; lev = next(lev)) {
+			if (keys[t] == key && !isDeleted(t)) {
+				return t;
+			} else if (channel(key, lev) > channel(keys[t], lev)) {
+				t = right[t];
+			} else {
+				t = left[t];
+			}
+		}
+		return NONE;
+	}
+
+	// hands the cost of the search just finished to the counters
+	private void record() {
+		if (stats != null) {
+			stats.recordQuery(visited, distances);
+		}
+		visited = 0;
+		distances = 0;
+	}
+
+	// builds the subtree of keys[from, to) in place and returns its root. Nodes are numbered by their position in keys.
+	private int build(final int from, final int to, final int lev, final int up) {
+		if (from == to) {
+			return NONE;
+		}
+
+		final int t = split(from, to, lev);
+		final int next = next(lev);
+		parent[t] = up;
+		if (to - from > PARALLEL_THRESHOLD) {
+			final Build l = new Build(from, t, next, t);
+			final Build r = new Build(t + 1, to, next, t);
+			ForkJoinTask.invokeAll(l, r);
+			left[t] = l.node;
+			right[t] = r.node;
+		} else {
+			left[t] = build(from, t, next, t);
+			right[t] = build(t + 1, to, next, t);
+		}
+
+		live[t] = to - from;
+		int l = keys[t];
+		int h = keys[t];
+		if (left[t] != NONE) {
+			l = min(l, lo[left[t]]);
+			h = max(h, hi[left[t]]);
+		}
+		if (right[t] != NONE) {
+			l = min(l, lo[right[t]]);
+			h = max(h, hi[right[t]]);
+		}
+		lo[t] = l;
+		hi[t] = h;
+		return t;
+	}
+
+	// moves the median of keys[from, to) on the split axis into place and returns its position. Keys equal to it on
+	// that axis end up before it, as add() and search() expect.
+	private int split(final int from, final int to, final int lev) {
+		final int mid = from + to >>> 1;
+		select(from, to - 1, mid, lev);
+
+		final int pivot = channel(keys[mid], lev);
+		int t = mid;
+		for (int i = mid + 1; i < to; i++) {
+			if (channel(keys[i], lev) == pivot) {
+				swap(++t, i);
+			}
+		}
+		swap(mid, t);
+		return t;
+	}
+
+	// Hoare's selection on keys[from, to] by the split axis, leaving the k-th smallest at k
+	private void select(int from, int to, final int k, final int lev) {
+		while (from < to) {
+			final int pivot = median(channel(keys[from], lev), channel(keys[from + to >>> 1], lev), channel(keys[to], lev));
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (channel(keys[i], lev) < pivot) {
+					i++;
+				}
+				while (channel(keys[j], lev) > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (k <= j) {
+				to = j;
+			} else if (k >= i) {
+				from = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(final int i, final int j) {
+		final int k = keys[i];
+		keys[i] = keys[j];
+		keys[j] = k;
+	}
+
+	private static int median(final int a, final int b, final int c) {
+		return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+	}
+
+	// returns the better of best and the nearest live key below t, encoded like NO_MATCH
+	private long nnbr(final int t, final int lev, final int target, long best, final int shrink) {
+		// nothing left below t, or nothing below t can beat the best so far
+		if (t == NONE || live[t] == 0 || boxdist(lo[t], hi[t], target) >= limit(best >>> 32, shrink)) {
+			return best;
+		}
+
+		visited++;
+		final int key = keys[t];
+		if (!isDeleted(t)) {
+			distances++;
+			final long d = sqrdist(key, target);
+			if (d < best >>> 32) {
+				best = d << 32 | t;
+			}
+		}
+
+		// keys equal on the split axis were inserted to the left
+		if (channel(target, lev) <= channel(key, lev)) {
+			best = nnbr(left[t], next(lev), target, best, shrink);
+			best = nnbr(right[t], next(lev), target, best, shrink);
+		} else {
+			best = nnbr(right[t], next(lev), target, best, shrink);
+			best = nnbr(left[t], next(lev), target, best, shrink);
+		}
+		return best;
+	}
+
+	private int rsearch(final int t, final int low, final int high, final IntConsumer visitor) {
+		if (t == NONE || live[t] == 0 || !overlaps(lo[t], hi[t], low, high)) {
+			return 0;
+		}
+		int n = 0;
+		if (!isDeleted(t) && overlaps(keys[t], keys[t], low, high)) {
+			visitor.accept(keys[t]);
+			n++;
+		}
+		return n + rsearch(left[t], low, high, visitor) + rsearch(right[t], low, high, visitor);
+	}
+
+	private int rfill(final int t, final int low, final int high, final int[] out, int n) {
+		if (t == NONE || live[t] == 0 || !overlaps(lo[t], hi[t], low, high)) {
+			return n;
+		}
+		if (!isDeleted(t) && overlaps(keys[t], keys[t], low, high)) {
+			if (n < out.length) {
+				out[n] = keys[t];
+			}
+			n++;
+		}
+		n = rfill(left[t], low, high, out, n);
+		return rfill(right[t], low, high, out, n);
+	}
+
+	// nnbr keeping the best nodes in heap instead of only the best
+	private void knnbr(final int t, final int lev, final int target, final int shrink) {
+		if (t == NONE || live[t] == 0 || heap.isFull() && boxdist(lo[t], hi[t], target) >= limit(heap.maxKey(), shrink)) {
+			return;
+		}
+
+		visited++;
+		final int key = keys[t];
+		if (!isDeleted(t)) {
+			distances++;
+			heap.offer(t, sqrdist(key, target));
+		}
+
+		if (channel(target, lev) <= channel(key, lev)) {
+			knnbr(left[t], next(lev), target, shrink);
+			knnbr(right[t], next(lev), target, shrink);
+		} else {
+			knnbr(right[t], next(lev), target, shrink);
+			knnbr(left[t], next(lev), target, shrink);
+		}
+	}
+
+	// counts a key made live at t into t and its ancestors
+	private void grow(int t, final int key) {
+		for (; t != NONE; t = parent[t]) {
+			if (live[t] == 0) {
+				lo[t] = key;
+				hi[t] = key;
+			} else {
+				lo[t] = min(lo[t], key);
+				hi[t] = max(hi[t], key);
+			}
+			live[t]++;
+		}
+	}
+
+	// uncounts a key deleted at t from t and its ancestors, refitting their boxes
+	private void shrink(int t) {
+		for (; t != NONE; t = parent[t]) {
+			live[t]--;
+			if (live[t] == 0) {
+				continue;
+			}
+
+			int l = isDeleted(t) ? 0xFFFFFF : keys[t];
+			int h = isDeleted(t) ? 0 : keys[t];
+			final int a = left[t];
+			if (a != NONE && live[a] > 0) {
+				l = min(l, lo[a]);
+				h = max(h, hi[a]);
+			}
+			final int b = right[t];
+			if (b != NONE && live[b] > 0) {
+				l = min(l, lo[b]);
+				h = max(h, hi[b]);
+			}
+			lo[t] = l;
+			hi[t] = h;
+		}
+	}
+
+	private boolean isDeleted(final int t) {
+		return (deleted[t >>> 6] & 1L << t) != 0;
+	}
+
+	private void setDeleted(final int t) {
+		deleted[t >>> 6] |= 1L << t;
+	}
+
+	private void clearDeleted(final int t) {
+		deleted[t >>> 6] &= ~(1L << t);
+	}
+
+	// longs needed for a bitset of n bits
+	private static int words(final int n) {
+		return n + 63 >>> 6;
+	}
+
+	private int newNode(final int key, final int up) {
+		if (nodes == keys.length) {
+			final int capacity = Math.max(keys.length * 2, DEFAULT_CAPACITY);
+			keys = Arrays.copyOf(keys, capacity);
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+			deleted = Arrays.copyOf(deleted, words(capacity));
+			live = Arrays.copyOf(live, capacity);
+			lo = Arrays.copyOf(lo, capacity);
+			hi = Arrays.copyOf(hi, capacity);
+		}
+		final int t = nodes++;
+		keys[t] = key;
+		left[t] = NONE;
+		right[t] = NONE;
+		parent[t] = up;
+		clearDeleted(t);
+		live[t] = 0;
+		grow(t, key);
+		return t;
+	}
+
+	private final class Build extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final int lev;
+		private final int up;
+
+		// root of the built subtree
+		int node;
+
+		Build(final int from, final int to, final int lev, final int up) {
+			this.from = from;
+			this.to = to;
+			this.lev = lev;
+			this.up = up;
+		}
+
+		@Override
+		protected void compute() {
+			node = build(from, to, lev, up);
+		}
+	}
+
+	private static int next(final int lev) {
+		return lev == 2 ? 0 : lev + 1;
+	}
+
+	// red for level 0, green for 1, blue for 2
+	private static int channel(final int key, final int lev) {
+		return key >>> 16 - (lev << 3) & 0xFF;
+	}
+
+	private int sqrdist(final int a, final int b) {
+		final int dr = (a >>> 16) - (b >>> 16);
+		final int dg = (a >>> 8 & 0xFF) - (b >>> 8 & 0xFF);
+		final int db = (a & 0xFF) - (b & 0xFF);
+		return wr * dr * dr + wg * dg * dg + wb * db * db;
+	}
+
+	// squared distance from a key to the nearest point of a packed box
+	private int boxdist(final int l, final int h, final int key) {
+		final int dr = axisdist(l >>> 16, h >>> 16, key >>> 16);
+		final int dg = axisdist(l >>> 8 & 0xFF, h >>> 8 & 0xFF, key >>> 8 & 0xFF);
+		final int db = axisdist(l & 0xFF, h & 0xFF, key & 0xFF);
+		return wr * dr * dr + wg * dg * dg + wb * db * db;
+	}
+
+	// squared distance a subtree must come closer than to be searched, given the best so far
+	private static long limit(final long best, final int shrink) {
+		return best * shrink + EXACT - 1 >>> SHIFT;
+	}
+
+	private static int axisdist(final int l, final int h, final int c) {
+		return c < l ? l - c : c > h ? c - h : 0;
+	}
+
+	// whether the packed boxes [l, h] and [low, high] intersect on every channel
+	private static boolean overlaps(final int l, final int h, final int low, final int high) {
+		return (l & 0xFF0000) <= (high & 0xFF0000) && (h & 0xFF0000) >= (low & 0xFF0000) && (l & 0xFF00) <= (high & 0xFF00)
+				&& (h & 0xFF00) >= (low & 0xFF00) && (l & 0xFF) <= (high & 0xFF) && (h & 0xFF) >= (low & 0xFF);
+	}
+
+	// per channel minimum of two packed colours
+	private static int min(final int a, final int b) {
+		return Math.min(a & 0xFF0000, b & 0xFF0000) | Math.min(a & 0xFF00, b & 0xFF00) | Math.min(a & 0xFF, b & 0xFF);
+	}
+
+	// per channel maximum of two packed colours
+	private static int max(final int a, final int b) {
+		return Math.max(a & 0xFF0000, b & 0xFF0000) | Math.max(a & 0xFF00, b & 0xFF00) | Math.max(a & 0xFF, b & 0xFF);
+	}
+}
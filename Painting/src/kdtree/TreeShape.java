@@ -0,0 +1,97 @@
+package kdtree;
+
+import java.util.Arrays;
+
+/**
+ * Snapshot of the structure of a tree: how many nodes it has, how many of them hold deleted keys, and how deep they
+ * sit. A deep or lopsided histogram, or many dead nodes, explains searches that visit more nodes than they should.
+ */
+public class TreeShape {
+
+	private final int live;
+	private final int dead;
+	private final long[] depths;
+
+	TreeShape(final int live, final int dead, final long[] depths) {
+		this.live = live;
+		this.dead = dead;
+		this.depths = depths;
+	}
+
+	/**
+	 * @return the number of nodes holding live keys
+	 */
+	public int liveNodes() {
+		return live;
+	}
+
+	/**
+	 * @return the number of nodes holding deleted keys, or with no live keys left for trees whose nodes hold many
+	 */
+	public int deadNodes() {
+		return dead;
+	}
+
+	/**
+	 * @return the number of nodes at each depth, the root being at depth 0
+	 */
+	public long[] depthHistogram() {
+		return depths.clone();
+	}
+
+	/**
+	 * @return the depth of the deepest node, or -1 for an empty tree
+	 */
+	public int maxDepth() {
+		return depths.length - 1;
+	}
+
+	/**
+	 * @return the mean depth of the nodes
+	 */
+	public double meanDepth() {
+		long nodes = 0;
+		long sum = 0;
+		for (int d = 0; d < depths.length; d++) {
+			nodes += depths[d];
+			sum += d * depths[d];
+		}
+		return nodes == 0 ? 0 : (double) sum / nodes;
+	}
+
+	// accumulates a shape while a tree is walked
+	static final class Builder {
+
+		private int live;
+		private int dead;
+		private long[] depths = new long[16];
+		private int maxDepth = -1;
+
+		void add(final int depth, final boolean isLive) {
+			if (isLive) {
+				live++;
+			} else {
+				dead++;
+			}
+			if (depth >= depths.length) {
+				depths = Arrays.copyOf(depths, Math.max(depths.length * 2, depth + 1));
+			}
+			depths[depth]++;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		TreeShape build() {
+			return new TreeShape(live, dead, Arrays.copyOf(depths, maxDepth + 1));
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder s = new StringBuilder();
+		s.append(String.format("%d live and %d dead nodes, depth %.1f mean and %d max", live, dead, meanDepth(), maxDepth()));
+		for (int d = 0; d < depths.length; d++) {
+			s.append(d == 0 ? "\n" : " ").append(d).append(':').append(depths[d]);
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,84 @@
+package kdtree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cost counters of the searches and rebuilds of a tree. A tree only counts while a TreeStats is attached to it, and
+ * then adds to the counters once per search rather than once per node, so attaching costs little and not attaching
+ * costs nothing. The counters can be read from any thread while the tree is in use.
+ */
+public class TreeStats {
+
+	private final LongAdder queries = new LongAdder();
+	private final LongAdder nodesVisited = new LongAdder();
+	private final LongAdder distances = new LongAdder();
+	private final LongAdder rebuilds = new LongAdder();
+	private final LongAdder rebuildNanos = new LongAdder();
+
+	// called by trees after each search
+	void recordQuery(final long visited, final long distanceComputations) {
+		queries.increment();
+		nodesVisited.add(visited);
+		distances.add(distanceComputations);
+	}
+
+	// called by trees after each rebuild
+	void recordRebuild(final long nanos) {
+		rebuilds.increment();
+		rebuildNanos.add(nanos);
+	}
+
+	/**
+	 * @return the number of nearest neighbour searches, single and multiple
+	 */
+	public long queries() {
+		return queries.sum();
+	}
+
+	/**
+	 * @return the number of nodes the searches looked at without pruning them
+	 */
+	public long nodesVisited() {
+		return nodesVisited.sum();
+	}
+
+	/**
+	 * @return the number of distances from a target to a key the searches worked out
+	 */
+	public long distanceComputations() {
+		return distances.sum();
+	}
+
+	/**
+	 * @return the number of rebuilds, such as {@link KDTree#pruneAndRebalance(HPoint)} or {@link RGBTree#rebuild()}
+	 */
+	public long rebuilds() {
+		return rebuilds.sum();
+	}
+
+	/**
+	 * @return total time spent rebuilding, in nanoseconds
+	 */
+	public long rebuildNanos() {
+		return rebuildNanos.sum();
+	}
+
+	public void reset() {
+		queries.reset();
+		nodesVisited.reset();
+		distances.reset();
+		rebuilds.reset();
+		rebuildNanos.reset();
+	}
+
+	/**
+	 * Summarises the counters as they are now, with per query averages.
+	 */
+	@Override
+	public String toString() {
+		final long q = queries();
+		final double perQuery = Math.max(q, 1);
+		return String.format("%d queries, %.1f nodes visited and %.1f distances per query, %d rebuilds taking %d ms", q,
+				nodesVisited() / perQuery, distanceComputations() / perQuery, rebuilds(), rebuildNanos() / 1000000);
+	}
+}
@@ -0,0 +1,246 @@
+package main;
+
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import main.Program.ComparisonType;
+import main.Program.Direction;
+import palette.Backend;
+import palette.Metric;
+
+/**
+ * Recreates images from the command line, without a window. Runs headless, so it works on machines without a screen,
+ * and recreates several images at once to use every core.
+ *
+ * <PRE>
+ * java main.Batch [options] image-or-directory...
+ *
+ *   -o path        directory to write to, or the file to write when there is one image (default: the current directory)
+ *   -d direction   UP, DOWN, LEFT, RIGHT, SPIRAL_OUT or SPIRAL_IN (default: RIGHT)
+ *   -c comparison  SINGLE_PIXEL, AVERAGE_PRE_3x3, AVERAGE_POST_5x5, RANDOM_5x5 or AVERAGE_PRE_BOX
+ *                  (default: SINGLE_PIXEL)
+ *   -r radius      pixels the box of AVERAGE_PRE_BOX reaches out on each side (default: 2)
+ *   -a accuracy    palette colours per pixel (default: 2)
+ *   -e epsilon     lets matches be up to 1 + epsilon times further than the nearest (default: 0)
+ *   -b backend     KD_TREE, KD_BUCKETS, OCTREE or LATTICE (default: KD_TREE)
+ *   -m metric      EUCLIDEAN, LUMA or REDMEAN (default: EUCLIDEAN)
+ *   -p palette     index file or image whose colours to use instead of a lattice
+ *   -lab           match colours in CIELAB
+ *   -t size        fill tiles of this size in parallel, each with its own share of the palette (default: 0, one thread)
+ *   -j jobs        images recreated at once (default: one per core)
+ * </PRE>
+ *
+ * Directories are searched for images, but not their subdirectories. Each image is written as a PNG named after it,
+ * <TT>photo.jpg</TT> as <TT>photo-unique.png</TT>.
+ */
+public class Batch {
+
+	// largest image area there are enough colours for
+	private static final long MAX_PIXELS = 255 * 255 * 255;
+
+	public static void main(final String[] args) throws Exception {
+		if (System.getProperty("java.awt.headless") == null) {
+			System.setProperty("java.awt.headless", "true");
+		}
+
+		Path output = Paths.get(".");
+		Path palette = null;
+		int jobs = Runtime.getRuntime().availableProcessors();
+		final List<Path> inputs = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "-o":
+					output = Paths.get(args[++i]);
+					break;
+				case "-d":
+					Program.currentDirection = Direction.valueOf(args[++i].toUpperCase());
+					break;
+				case "-c":
+					Program.comparisonType = comparisonType(args[++i]);
+					break;
+				case "-r":
+					Program.boxRadius = Integer.parseInt(args[++i]);
+					break;
+				case "-a":
+					Program.accuracy = Float.parseFloat(args[++i]);
+					break;
+				case "-e":
+					Program.epsilon = Float.parseFloat(args[++i]);
+					break;
+				case "-b":
+					Program.backend = Backend.valueOf(args[++i].toUpperCase());
+					break;
+				case "-m":
+					Program.metric = Metric.valueOf(args[++i].toUpperCase());
+					break;
+				case "-p":
+					palette = Paths.get(args[++i]);
+					break;
+				case "-lab":
+					Program.matchLab = true;
+					break;
+				case "-t":
+					Program.tileSize = Integer.parseInt(args[++i]);
+					break;
+				case "-j":
+					jobs = Integer.parseInt(args[++i]);
+					break;
+				default:
+					if (args[i].startsWith("-")) {
+						throw new IllegalArgumentException("Unknown option " + args[i]);
+					}
+					addImages(Paths.get(args[i]), inputs);
+					break;
+				}
+			}
+		} catch (final ArrayIndexOutOfBoundsException e) {
+			usage("Missing the value of " + args[args.length - 1]);
+			return;
+		} catch (final IllegalArgumentException e) {
+			usage(e.getMessage());
+			return;
+		}
+		if (inputs.isEmpty()) {
+			usage("No images given");
+			return;
+		}
+		if (jobs < 1) {
+			usage("Jobs must be at least 1");
+			return;
+		}
+		if (Program.boxRadius < 0) {
+			usage("Box radius must not be negative");
+			return;
+		}
+		if (Program.tileSize < 0) {
+			usage("Tile size must not be negative");
+			return;
+		}
+		// images are indexed with the backend, so only once every option is known
+		if (palette != null) {
+			if (!Files.isRegularFile(palette)) {
+				usage("No such file " + palette);
+				return;
+			}
+			try {
+				Program.palette = Program.preparePalette(palette);
+			} catch (final IOException | UnsupportedOperationException e) {
+				usage("Cannot use palette " + palette + ": " + e.getMessage());
+				return;
+			}
+		}
+
+		final boolean toFile = inputs.size() == 1 && !Files.isDirectory(output) && output.getFileName() != null
+				&& output.getFileName().toString().contains(".");
+		if (!toFile) {
+			Files.createDirectories(output);
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, inputs.size()));
+		final List<Future<?>> results = new ArrayList<>(inputs.size());
+		for (final Path input : inputs) {
+			final File file = toFile ? output.toFile() : output.resolve(outputName(input)).toFile();
+			results.add(executor.submit(() -> {
+				recreate(input, file);
+				return null;
+			}));
+		}
+		executor.shutdown();
+
+		int failed = 0;
+		for (int i = 0; i < inputs.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (final ExecutionException e) {
+				failed++;
+				System.err.println("Failed on " + inputs.get(i) + ": " + e.getCause());
+			}
+		}
+		System.out.println("Recreated " + (inputs.size() - failed) + " of " + inputs.size() + " images");
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	// recreates one image and saves it, on a thread of the executor
+	private static void recreate(final Path input, final File output) throws IOException {
+		final BufferedImage read = ImageIO.read(input.toFile());
+		if (read == null) {
+			throw new IOException("Not an image: " + input);
+		}
+		if ((long) read.getWidth() * read.getHeight() > MAX_PIXELS) {
+			throw new IOException("Image cannot have an area of over 255 * 255 * 255: " + input);
+		}
+		final BufferedImage image = GraphicsUtils.toCompatibleImage(read);
+		final BufferedImage result = GraphicsUtils.createImage(image.getWidth(), image.getHeight(), Transparency.OPAQUE);
+
+		final ImageTask task = Program.newTask(image, result, output, (percent) -> {
+		});
+		if (task == null) {
+			throw new IOException("Cannot read the palette for " + input);
+		}
+		task.run();
+		System.out.println("Wrote " + output);
+	}
+
+	// adds an image, or the files of a directory that are images
+	private static void addImages(final Path path, final List<Path> inputs) throws IOException {
+		if (!Files.isDirectory(path)) {
+			if (!Files.exists(path)) {
+				throw new IllegalArgumentException("No such file " + path);
+			}
+			inputs.add(path);
+			return;
+		}
+		final List<String> suffixes = Arrays.asList(ImageIO.getReaderFileSuffixes());
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+			for (final Path file : files) {
+				final String name = file.getFileName().toString();
+				final int dot = name.lastIndexOf('.');
+				if (dot >= 0 && Files.isRegularFile(file) && suffixes.contains(name.substring(dot + 1).toLowerCase())) {
+					inputs.add(file);
+				}
+			}
+		}
+	}
+
+	// PNG named after the input, marked so that it never replaces an input in the same directory
+	private static String outputName(final Path input) {
+		final String name = input.getFileName().toString();
+		final int dot = name.lastIndexOf('.');
+		return (dot > 0 ? name.substring(0, dot) : name) + "-unique.png";
+	}
+
+	// comparison types are named with a lowercase x, so match them ignoring case
+	private static ComparisonType comparisonType(final String name) {
+		for (final ComparisonType type : ComparisonType.values()) {
+			if (type.name().equalsIgnoreCase(name)) {
+				return type;
+			}
+		}
+		throw new IllegalArgumentException("Unknown comparison type " + name);
+	}
+
+	private static void usage(final String problem) {
+		System.err.println(problem);
+		System.err.println("Usage: java main.Batch [-o path] [-d direction] [-c comparison] [-r radius] [-a accuracy]"
+				+ " [-e epsilon] [-b backend] [-m metric] [-p palette] [-lab] [-t size] [-j jobs] image-or-directory...");
+		System.exit(2);
+	}
+}
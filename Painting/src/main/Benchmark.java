@@ -0,0 +1,139 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import kdtree.KDTree;
+import palette.Backend;
+import palette.ColorIndex;
+import palette.LatticeIndex;
+
+/**
+ * Times the nearest-and-remove workload of {@link ImageTask} on each palette backend and on the generic {@link KDTree}:
+ * a lattice palette of twice as many colours as the image has pixels, drained by one query per pixel in row order.
+ *
+ * <PRE>
+ * java main.Benchmark [image]
+ * </PRE>
+ *
+ * Without an image a 1024x1024 one of smooth noise is made up.
+ */
+public class Benchmark {
+
+	private static final float ACCURACY = 2f;
+
+	public static void main(final String[] args) throws Exception {
+		final int[] targets;
+		if (args.length > 0) {
+			final BufferedImage image = ImageIO.read(new File(args[0]));
+			targets = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+		} else {
+			targets = noise(1024, 1024);
+		}
+		final int[] levels = LatticeIndex.levels((int) (targets.length * ACCURACY));
+		System.out.println(targets.length + " queries on " + levels.length * levels.length * levels.length + " colors");
+
+		for (final Backend backend : Backend.values()) {
+			long begin = System.nanoTime();
+			final ColorIndex index = backend.build(levels);
+			final long build = System.nanoTime() - begin;
+
+			begin = System.nanoTime();
+			long error = 0;
+			for (final int target : targets) {
+				error += distance(index.nearestAndRemove(target), target);
+			}
+			report(backend.toString(), build, System.nanoTime() - begin, error, targets.length);
+		}
+
+		long begin = System.nanoTime();
+		final KDTree tree = kdTree(levels);
+		final long build = System.nanoTime() - begin;
+
+		begin = System.nanoTime();
+		long error = 0;
+		final int[] key = new int[3];
+		for (final int target : targets) {
+			key[0] = target >>> 16 & 0xFF;
+			key[1] = target >>> 8 & 0xFF;
+			key[2] = target & 0xFF;
+			error += distance((Integer) tree.nearestAndRemove(key), target);
+		}
+		report("KDTree", build, System.nanoTime() - begin, error, targets.length);
+	}
+
+	private static void report(final String name, final long build, final long fill, final long error, final int queries) {
+		System.out.println(String.format("%-12s build %6d ms, fill %6d ms, %.2f us per query, mean squared error %.1f", name,
+				build / 1000000, fill / 1000000, fill / 1000.0 / queries, (double) error / queries));
+	}
+
+	// generic tree of the lattice colours, inserted in random order so that it comes out balanced
+	private static KDTree kdTree(final int[] levels) throws Exception {
+		final int n = levels.length;
+		final int[] colors = new int[n * n * n];
+		int i = 0;
+		for (final int r : levels) {
+			for (final int g : levels) {
+				for (final int b : levels) {
+					colors[i++] = r << 16 | g << 8 | b;
+				}
+			}
+		}
+		final Random random = new Random(1);
+		for (i = colors.length - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final int c = colors[i];
+			colors[i] = colors[j];
+			colors[j] = c;
+		}
+
+		final KDTree tree = new KDTree(3);
+		for (final int c : colors) {
+			tree.insert(new int[] { c >>> 16 & 0xFF, c >>> 8 & 0xFF, c & 0xFF }, c);
+		}
+		return tree;
+	}
+
+	// pixels of an image of smooth noise: random gradients blended over a coarse grid
+	private static int[] noise(final int width, final int height) {
+		final int cell = 64;
+		final int gw = width / cell + 2;
+		final int gh = height / cell + 2;
+		final Random random = new Random(1);
+		final int[] grid = new int[gw * gh];
+		for (int i = 0; i < grid.length; i++) {
+			grid[i] = random.nextInt(1 << 24);
+		}
+
+		final int[] pixels = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final float fx = (float) (x % cell) / cell;
+				final float fy = (float) (y % cell) / cell;
+				final int i = y / cell * gw + x / cell;
+				int rgb = 0;
+				for (int shift = 0; shift <= 16; shift += 8) {
+					final float top = lerp(grid[i] >>> shift & 0xFF, grid[i + 1] >>> shift & 0xFF, fx);
+					final float bottom = lerp(grid[i + gw] >>> shift & 0xFF, grid[i + gw + 1] >>> shift & 0xFF, fx);
+					rgb |= (int) lerp(top, bottom, fy) << shift;
+				}
+				pixels[y * width + x] = rgb;
+			}
+		}
+		return pixels;
+	}
+
+	private static float lerp(final float a, final float b, final float t) {
+		return a + (b - a) * t;
+	}
+
+	private static int distance(final int a, final int b) {
+		final int dr = (a >>> 16 & 0xFF) - (b >>> 16 & 0xFF);
+		final int dg = (a >>> 8 & 0xFF) - (b >>> 8 & 0xFF);
+		final int db = (a & 0xFF) - (b & 0xFF);
+		return dr * dr + dg * dg + db * db;
+	}
+}
@@ -10,6 +10,7 @@ import java.util.function.Consumer;
 
 import javax.imageio.ImageIO;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
@@ -18,6 +19,8 @@ import javax.swing.JPanel;
 
 import main.Program.ComparisonType;
 import main.Program.Direction;
+import palette.Backend;
+import palette.Metric;
 
 @SuppressWarnings("serial")
 public class ControlPanel extends JPanel {
@@ -33,6 +36,10 @@ public class ControlPanel extends JPanel {
 		});
 		add(pickImageButton);
 
+		final JButton pickPaletteButton = new JButton("Pick palette");
+		pickPaletteButton.addActionListener((e) -> pickPalette());
+		add(pickPaletteButton);
+
 		final JComboBox<Direction> directions = new JComboBox<Direction>(Direction.values());
 		directions.setSelectedIndex(Arrays.asList(Direction.values()).indexOf(Program.currentDirection));
 		directions.addActionListener((e) -> handleChangeDirection(e));
@@ -45,12 +52,50 @@ public class ControlPanel extends JPanel {
 		add(new JLabel("Comparison Type:"));
 		add(comparisonMode);
 
+		final JComboBox<Integer> radii = new JComboBox<Integer>(new Integer[] { 1, 2, 3, 5, 8, 12, 20, 32 });
+		radii.setSelectedItem(Program.boxRadius);
+		radii.addActionListener((e) -> handleChangeBoxRadius(e));
+		add(new JLabel("Box radius:"));
+		add(radii);
+
+		final JComboBox<Metric> metrics = new JComboBox<Metric>(Metric.values());
+		metrics.setSelectedIndex(Arrays.asList(Metric.values()).indexOf(Program.metric));
+		metrics.addActionListener((e) -> handleChangeMetric(e));
+		add(new JLabel("Color distance:"));
+		add(metrics);
+
+		final JCheckBox lab = new JCheckBox("Match in CIELAB", Program.matchLab);
+		lab.addActionListener((e) -> Program.matchLab = lab.isSelected());
+		add(lab);
+
 		final JComboBox<Float> accuracies = new JComboBox<Float>(new Float[] { .25f, .5f, 1f, 2f, 3f, 4f, 5f });
 		accuracies.setSelectedIndex(3);
 		accuracies.addActionListener((e) -> handleChangeAccuracy(e));
 		add(new JLabel("Accuracy (bigger is slower, but more accurate):"));
 		add(accuracies);
 
+		final JComboBox<Float> epsilons = new JComboBox<Float>(new Float[] { 0f, .05f, .1f, .25f, .5f, 1f });
+		epsilons.setSelectedIndex(0);
+		epsilons.addActionListener((e) -> handleChangeEpsilon(e));
+		add(new JLabel("Epsilon (bigger is faster, but less accurate):"));
+		add(epsilons);
+
+		final JComboBox<Backend> backends = new JComboBox<Backend>(Backend.values());
+		backends.setSelectedIndex(Arrays.asList(Backend.values()).indexOf(Program.backend));
+		backends.addActionListener((e) -> handleChangeBackend(e));
+		add(new JLabel("Palette index:"));
+		add(backends);
+
+		final JComboBox<Integer> tileSizes = new JComboBox<Integer>(new Integer[] { 0, 64, 128, 256, 512 });
+		tileSizes.setSelectedItem(Program.tileSize);
+		tileSizes.addActionListener((e) -> handleChangeTileSize(e));
+		add(new JLabel("Parallel tile size (0 fills on one thread):"));
+		add(tileSizes);
+
+		final JCheckBox stats = new JCheckBox("Index statistics", Program.collectStats);
+		stats.addActionListener((e) -> Program.collectStats = stats.isSelected());
+		add(stats);
+
 		final JButton runButton = new JButton("Run");
 		runButton.addActionListener(runListener);
 		add(runButton);
@@ -64,11 +109,36 @@ public class ControlPanel extends JPanel {
 		Program.comparisonType = (ComparisonType) ((JComboBox<ComparisonType>) e.getSource()).getSelectedItem();
 	}
 
+	@SuppressWarnings("unchecked")
+	private void handleChangeBoxRadius(final ActionEvent e) {
+		Program.boxRadius = (Integer) ((JComboBox<Integer>) e.getSource()).getSelectedItem();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void handleChangeMetric(final ActionEvent e) {
+		Program.metric = (Metric) ((JComboBox<Metric>) e.getSource()).getSelectedItem();
+	}
+
 	@SuppressWarnings("unchecked")
 	private void handleChangeAccuracy(final ActionEvent e) {
 		Program.accuracy = (Float) ((JComboBox<Float>) e.getSource()).getSelectedItem();
 	}
 
+	@SuppressWarnings("unchecked")
+	private void handleChangeEpsilon(final ActionEvent e) {
+		Program.epsilon = (Float) ((JComboBox<Float>) e.getSource()).getSelectedItem();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void handleChangeBackend(final ActionEvent e) {
+		Program.backend = (Backend) ((JComboBox<Backend>) e.getSource()).getSelectedItem();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void handleChangeTileSize(final ActionEvent e) {
+		Program.tileSize = (Integer) ((JComboBox<Integer>) e.getSource()).getSelectedItem();
+	}
+
 	@SuppressWarnings("unchecked")
 	private void handleChangeDirection(final ActionEvent e) {
 		Program.currentDirection = (Direction) ((JComboBox<Direction>) e.getSource()).getSelectedItem();
@@ -95,6 +165,21 @@ public class ControlPanel extends JPanel {
 		}
 	}
 
+	// picks a custom palette, or goes back to lattice palettes if the dialog is cancelled
+	private void pickPalette() {
+		final JFileChooser fc = new JFileChooser();
+		if (fc.showOpenDialog(null) != JFileChooser.APPROVE_OPTION) {
+			Program.palette = null;
+			System.out.println("Using lattice palettes");
+			return;
+		}
+		try {
+			Program.palette = Program.preparePalette(fc.getSelectedFile().toPath());
+		} catch (final IOException | UnsupportedOperationException e) {
+			JOptionPane.showMessageDialog(null, "Cannot use palette: " + e.getMessage());
+		}
+	}
+
 	public void setCompletion(final float f) {
 		percent.setText(String.format("Completion: %.3f%%", f));
 	}
@@ -6,6 +6,9 @@ import java.awt.GraphicsEnvironment;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -16,16 +19,22 @@ import javax.imageio.ImageIO;
  */
 public final class GraphicsUtils {
 
-	/** The Constant GFX_CONFIG. */
-	private static final GraphicsConfiguration GFX_CONFIG = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
-			.getDefaultConfiguration();
+	/**
+	 * The configuration of the default screen, looked up the first time an image is made rather than when the class is
+	 * loaded, so that headless programs can use the class too. Null without a screen.
+	 */
+	private static final class Screen {
+		static final GraphicsConfiguration GFX_CONFIG = GraphicsEnvironment.isHeadless() ? null
+				: GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+	}
 
 	// Utility class, cannot instantiate
 	private GraphicsUtils() {
 	}
 
 	/**
-	 * Takes an image and makes a compatible version.
+	 * Takes an image and makes a compatible version. Without a screen, images with int pixels are compatible and others
+	 * are copied into one.
 	 *
 	 * @param image
 	 *            the image
@@ -35,12 +44,14 @@ public final class GraphicsUtils {
 		/*
 		 * if image is already compatible and optimized for current system settings, simply return it
 		 */
-		if (image.getColorModel().equals(GFX_CONFIG.getColorModel())) {
+		final GraphicsConfiguration config = Screen.GFX_CONFIG;
+		if (config == null ? image.getRaster().getDataBuffer().getDataType() == DataBuffer.TYPE_INT
+				: image.getColorModel().equals(config.getColorModel())) {
 			return image;
 		}
 
 		// image is not optimized, so create a new image that is
-		final BufferedImage new_image = GFX_CONFIG.createCompatibleImage(image.getWidth(), image.getHeight(), image.getTransparency());
+		final BufferedImage new_image = createImage(image.getWidth(), image.getHeight(), image.getTransparency());
 
 		// get the graphics context of the new image to draw the old image on
 		final Graphics2D g2d = (Graphics2D) new_image.getGraphics();
@@ -54,7 +65,8 @@ public final class GraphicsUtils {
 	}
 
 	/**
-	 * Creates a compatible image given the parameters.
+	 * Creates a compatible image given the parameters. Images are always backed by ints, and without a screen they are
+	 * plain int RGB or ARGB images.
 	 *
 	 * @param width
 	 *            the width
@@ -65,8 +77,9 @@ public final class GraphicsUtils {
 	 * @return the buffered image
 	 */
 	public static BufferedImage createImage(final int width, final int height, final int transparency) {
-		BufferedImage image = GFX_CONFIG.createCompatibleImage(width, height, transparency);
-		if (image.getRaster().getDataBuffer().getDataType() != DataBuffer.TYPE_INT) {
+		final GraphicsConfiguration config = Screen.GFX_CONFIG;
+		BufferedImage image = config == null ? null : config.createCompatibleImage(width, height, transparency);
+		if (image == null || image.getRaster().getDataBuffer().getDataType() != DataBuffer.TYPE_INT) {
 			switch (transparency) {
 			case Transparency.TRANSLUCENT:
 				image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
@@ -84,6 +97,29 @@ public final class GraphicsUtils {
 		return image;
 	}
 
+	/**
+	 * Gets the array an image keeps its pixels in, to read and write them directly instead of through getRGB and setRGB,
+	 * which convert every pixel through the colour model. Only int RGB and ARGB images whose rows follow each other in
+	 * one array qualify, which those from {@link #createImage(int, int, int)} and ImageIO usually are.
+	 *
+	 * @param image
+	 *            the image
+	 * @return the packed pixels, row by row, or null if the image keeps them some other way
+	 */
+	public static int[] pixels(final BufferedImage image) {
+		if (image.getType() != BufferedImage.TYPE_INT_RGB && image.getType() != BufferedImage.TYPE_INT_ARGB) {
+			return null;
+		}
+		final WritableRaster raster = image.getRaster();
+		if (!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+				|| ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() != image.getWidth()
+				|| raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+				|| raster.getDataBuffer().getOffset() != 0) {
+			return null;
+		}
+		return ((DataBufferInt) raster.getDataBuffer()).getData();
+	}
+
 	public static BufferedImage loadImage(final String filename) throws IOException {
 		final InputStream in = GraphicsUtils.class.getResourceAsStream(filename);
 		return toCompatibleImage(ImageIO.read(in));
@@ -1,210 +1,416 @@
 package main;
 
-import java.awt.Color;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
 
 import javax.imageio.ImageIO;
-import javax.swing.JPanel;
 
-import kdtree.HPoint;
-import kdtree.KDTree;
-import kdtree.KeyMissingException;
-import kdtree.KeySizeException;
 import main.Program.ComparisonType;
+import main.Program.Direction;
+import kdtree.TreeStats;
+import palette.ColorIndex;
+import palette.PaletteShares;
+import palette.RebuildingIndex;
 
 public class ImageTask implements Runnable {
 
-	private boolean stop;
+	// longest run of equal targets claimed with one query
+	private static final int MAX_RUN = 64;
+
+	// with statistics on, they are printed every time this many percent more of the image is done
+	private static final int STATS_PERCENT = 10;
+
+	// with approximate searches, one query in this many is also searched exactly to measure the error added
+	private static final int ERROR_SAMPLE_INTERVAL = 64;
+
+	// set from other threads to stop the task; read once per query, which costs next to nothing for a volatile
+	private volatile boolean stop;
 	private final BufferedImage preImage;
 	private final BufferedImage result;
 	private final List<Point> points;
-	private KDTree colors;
-	private final JPanel panel;
-	private final ControlPanel controls;
+	private final ColorIndex colors;
+	// told the percentage done every so many pixels, from the thread running the task
+	private final DoubleConsumer progress;
+	// where the image is saved once finished, or null to not save it
+	private final File output;
 	private ComparisonType comparisonType;
+	// pixels the box of AVERAGE_PRE_BOX reaches out from its centre on each side
+	private final int boxRadius;
+	private final float epsilon;
+	private final TreeStats stats;
 	private Random rand = new Random();
-	boolean[][] setPixel;
+	// the input's pixels, packed row by row, and the result's if it keeps them in an array it can be drawn into
+	// through, else null; shared by the tiles of a task
+	private int[] input;
+	private int[] pixels;
+	// channel sums of the input for the modes that average boxes of it, else null; shared by the tiles of a task
+	private SummedAreaTable boxes;
+	// colours set in the region this task fills, opaque, by offset from the corner of the region; 0 where not set yet
+	private int[] filled;
+
+	// region of the image this task fills, and the task it fills it for, or null if it fills the whole image itself
+	private final Rectangle bounds;
+	private final ImageTask parent;
+
+	// with tiles, the order pixels are filled in within each tile and the size of the tiles, otherwise null and 0
+	private final Direction direction;
+	private final int tileSize;
+
+	// tiles of every tiled task are filled on this one pool, so tasks running at once share its threads rather than each
+	// starting as many as there are cores. Its threads end once it has been idle a while.
+	private static final ForkJoinPool TILE_POOL = new ForkJoinPool();
+
+	// error added by approximate searches, measured on a sample of the queries
+	private int samples;
+	private double addedError;
+	private double worstRatio = 1;
 
 	public ImageTask(final BufferedImage preImage, final BufferedImage result, final List<Point> points,
-			final KDTree colors, final JPanel panel, final ControlPanel controls, ComparisonType comparisonType) {
+			final ColorIndex colors, final ComparisonType comparisonType, final int boxRadius, final float epsilon,
+			final TreeStats stats, final File output, final DoubleConsumer progress) {
+		this(preImage, result, points, colors, comparisonType, boxRadius, epsilon, stats, output, progress,
+				new Rectangle(preImage.getWidth(), preImage.getHeight()), null, null, 0);
+	}
+
+	/**
+	 * Makes a task that splits the image into square tiles and fills them in parallel, each in the given direction
+	 * with a share of the palette of its own. The shares are picked from the colours of the tiles in the image, so that
+	 * each tile gets the colours it needs most, and never overlap, so no colour is used twice.
+	 *
+	 * @param tileSize
+	 *            width and height of the tiles; those at the right and bottom edges may be smaller
+	 */
+	public ImageTask(final BufferedImage preImage, final BufferedImage result, final Direction direction,
+			final int tileSize, final ColorIndex colors, final ComparisonType comparisonType, final int boxRadius,
+			final float epsilon, final File output, final DoubleConsumer progress) {
+		this(preImage, result, null, colors, comparisonType, boxRadius, epsilon, null, output, progress,
+				new Rectangle(preImage.getWidth(), preImage.getHeight()), null, direction, tileSize);
+	}
+
+	private ImageTask(final BufferedImage preImage, final BufferedImage result, final List<Point> points,
+			final ColorIndex colors, final ComparisonType comparisonType, final int boxRadius, final float epsilon,
+			final TreeStats stats, final File output, final DoubleConsumer progress, final Rectangle bounds,
+			final ImageTask parent, final Direction direction, final int tileSize) {
 		this.preImage = preImage;
 		this.result = result;
 		this.points = points;
 		this.colors = colors;
-		this.panel = panel;
-		this.controls = controls;
+		this.progress = progress;
+		this.output = output;
 		this.comparisonType = comparisonType;
-		setPixel = new boolean[preImage.getHeight()][preImage.getWidth()];
+		this.boxRadius = boxRadius;
+		this.epsilon = epsilon;
+		this.stats = stats;
+		this.bounds = bounds;
+		this.parent = parent;
+		this.direction = direction;
+		this.tileSize = tileSize;
+		if (parent != null) {
+			input = parent.input;
+			pixels = parent.pixels;
+			boxes = parent.boxes;
+		}
 	}
 
 	@Override
 	public void run() {
 		System.out.println("Creating image");
-		int i = 1;
-		// prints debug information and rebalances tree every so many iterations
+		// reading and writing the arrays behind the images saves a colour model conversion per pixel. Input that keeps
+		// its pixels some other way is converted once, up front.
+		input = GraphicsUtils.pixels(preImage);
+		if (input == null) {
+			input = preImage.getRGB(0, 0, preImage.getWidth(), preImage.getHeight(), null, 0, preImage.getWidth());
+		}
+		pixels = GraphicsUtils.pixels(result);
+		if (comparisonType == ComparisonType.AVERAGE_PRE_3x3 || comparisonType == ComparisonType.AVERAGE_PRE_BOX) {
+			// box sums then cost the same at any size, and nothing per pixel
+			boxes = new SummedAreaTable(input, preImage.getWidth(), preImage.getHeight());
+		}
+		if (tileSize > 0 ? !fillTiles() : !fill()) {
+			return;
+		}
+		System.out.println("Finished!");
+		if (samples > 0) {
+			System.out.println(String.format("Epsilon %.2f: %d queries sampled, mean added error %.3f, worst %.3fx the exact distance",
+					epsilon, samples, addedError / samples, worstRatio));
+		}
+		if (output != null) {
+			saveImage(result, output);
+		}
+	}
+
+	// fills the points of this task in order, returning false if stopped first
+	private boolean fill() {
+		filled = new int[bounds.width * bounds.height];
+		final int width = result.getWidth();
+		// prints debug information every so many iterations
 		final int iterationsPerPrint = 100;
-		final int iterationsPerPrune = 2500;
-		for (final Point p : points) {
+
+		// Flat regions produce runs of pixels with the same target. Each run is claimed with one k-nearest query,
+		// which hands out the same colours as one query per pixel. Targets that depend on the output can't be
+		// computed ahead, so those go one pixel at a time.
+		final boolean lookAhead = comparisonType != ComparisonType.AVERAGE_POST_5x5;
+		final int[] run = new int[MAX_RUN];
+		final int size = points.size();
+		int nextTarget = 0;
+		boolean haveNext = false;
+
+		int queries = 0;
+
+		for (int i = 0; i < size;) {
 			if (isStopped()) {
-				return;
+				stopRebuilding();
+				return false;
+			}
+
+			final int target = haveNext ? nextTarget : targetColor(points.get(i));
+			haveNext = false;
+			int n = 1;
+			if (lookAhead) {
+				while (n < MAX_RUN && i + n < size) {
+					nextTarget = targetColor(points.get(i + n));
+					if (nextTarget != target) {
+						haveNext = true;
+						break;
+					}
+					n++;
+				}
 			}
 
-			final Color c = getAndRemoveClosestColor(p, colors);
-			result.setRGB(p.x, p.y, c.getRGB());
-			setPixel[p.y][p.x] = true;
+			final boolean sample = epsilon > 0 && queries++ % ERROR_SAMPLE_INTERVAL == 0;
+			final int exact = sample ? colors.nearest(target) : ColorIndex.NONE;
 
-			if (i % iterationsPerPrint == 0) {
-				synchronized (controls) {
-					controls.setCompletion((float) i / points.size() * 100f);
+			final int claimed = colors.nearestAndRemove(target, n, run);
+
+			if (sample && claimed > 0) {
+				// the first colour of a run is the one an exact search would have matched
+				final double best = Math.sqrt(colors.distance(exact, target));
+				final double got = Math.sqrt(colors.distance(run[0], target));
+				samples++;
+				addedError += got - best;
+				if (best > 0) {
+					worstRatio = Math.max(worstRatio, got / best);
 				}
-				panel.repaint();
 			}
-			if (i % iterationsPerPrune == 0) {
-				colors = colors.pruneAndRebalance(new HPoint(new int[] { c.getRed(), c.getGreen(), c.getBlue() }));
+			for (int k = 0; k < claimed; k++) {
+				final Point p = points.get(i + k);
+				final int color = 0xFF000000 | run[k];
+				if (pixels != null) {
+					pixels[p.y * width + p.x] = color;
+				} else {
+					result.setRGB(p.x, p.y, color);
+				}
+				filled[(p.y - bounds.y) * bounds.width + p.x - bounds.x] = color;
+			}
+
+			if (stats != null && (long) (i + n) * 100 / size / STATS_PERCENT != (long) i * 100 / size / STATS_PERCENT) {
+				System.out.println("Palette index at " + (long) (i + n) * 100 / size + "%: " + stats);
+			}
+			if ((i + n) / iterationsPerPrint != i / iterationsPerPrint) {
+				progress.accept((double) (i + n) / size * 100);
 			}
-			i++;
+			i += n;
 		}
-		System.out.println("Finished!");
-		saveImage(result);
+		stopRebuilding();
+		return true;
 	}
 
-	/**
-	 * Finds the color most similar to a specified color in the tree, removes
-	 * it, and returns it.
-	 *
-	 * @param color
-	 * @param colors
-	 * @return
-	 */
-	private Color getAndRemoveClosestColor(final Point p, final KDTree colors) {
-		try {
-			Color average = null;
-			switch (comparisonType) {
-			case SINGLE_PIXEL:
-				average = new Color(preImage.getRGB(p.x, p.y));
-				break;
-			case AVERAGE_PRE_3x3: {
-				int reds = 0;
-				int greens = 0;
-				int blues = 0;
-				for (int y = -1; y <= 1; y++) {
-					for (int x = -1; x <= 1; x++) {
-						int posX = p.x + x;
-						int posY = p.y + y;
-						if (posX < 0 || posY < 0 || posX >= preImage.getWidth() || posY >= preImage.getHeight()) {
-							continue;
-						}
-
-						Color color = new Color(preImage.getRGB(posX, posY));
-						reds += color.getRed();
-						greens += color.getGreen();
-						blues += color.getBlue();
+	// a background rebuild of the index is of no use once the fill is done with it, however it ended
+	private void stopRebuilding() {
+		if (colors instanceof RebuildingIndex) {
+			((RebuildingIndex) colors).cancel();
+		}
+	}
 
-					}
-				}
-				average = new Color(reds / 9, greens / 9, blues / 9);
+	/*
+	 * Splits the palette among the tiles and fills them on a work-stealing pool, which keeps every core busy however
+	 * long each tile takes. Each tile builds its own index from its share first, so the builds run in parallel too.
+	 * Returns false if stopped first.
+	 */
+	private boolean fillTiles() {
+		final List<Rectangle> tiles = new ArrayList<>();
+		for (int y = 0; y < bounds.height; y += tileSize) {
+			for (int x = 0; x < bounds.width; x += tileSize) {
+				tiles.add(new Rectangle(x, y, Math.min(tileSize, bounds.width - x), Math.min(tileSize, bounds.height - y)));
 			}
-				break;
-			case AVERAGE_POST_5x5: {
-				final float NEIGHBOR_WEIGHT = 0.5f;
-				int reds = 0;
-				int greens = 0;
-				int blues = 0;
-				int i = 0;
-				for (int y = -2; y <= 2; y++) {
-					for (int x = -2; x <= 2; x++) {
-						int posX = p.x + x;
-						int posY = p.y + y;
-						if (posX < 0 || posY < 0 || posX >= preImage.getWidth() || posY >= preImage.getHeight()) {
-							continue;
-						}
-
-						if (setPixel[posY][posX]) {
-							i++;
-							Color color = new Color(result.getRGB(posX, posY));
-							reds += color.getRed();
-							greens += color.getGreen();
-							blues += color.getBlue();
-						}
-					}
-				}
-				if (i == 0) {
-					// if first pixel, do single pixel method
-					average = new Color(preImage.getRGB(p.x, p.y));
-				} else {
-					int neighborAverageRed = (int) (reds / i * NEIGHBOR_WEIGHT);
-					int neighborAverageGreen = (int) (greens / i * NEIGHBOR_WEIGHT);
-					int neighborAverageBlue = (int) (blues / i * NEIGHBOR_WEIGHT);
+		}
+		System.out.println("Splitting the palette among " + tiles.size() + " tiles");
+		final int[][] targets = new int[tiles.size()][];
+		for (int t = 0; t < targets.length; t++) {
+			final Rectangle r = tiles.get(t);
+			targets[t] = new int[r.width * r.height];
+			for (int y = 0; y < r.height; y++) {
+				System.arraycopy(input, (r.y + y) * preImage.getWidth() + r.x, targets[t], y * r.width, r.width);
+			}
+		}
+		final int[][] shares = PaletteShares.split(colors.toArray(), targets);
 
-					Color center = new Color(preImage.getRGB(p.x, p.y));
-					int centerRed = (int) (center.getRed() * (1f - NEIGHBOR_WEIGHT));
-					int centerGreen = (int) (center.getGreen() * (1f - NEIGHBOR_WEIGHT));
-					int centerBlue = (int) (center.getBlue() * (1f - NEIGHBOR_WEIGHT));
+		final long pixels = (long) bounds.width * bounds.height;
+		final AtomicLong filled = new AtomicLong();
+		final List<ForkJoinTask<?>> running = new ArrayList<>(tiles.size());
+		for (int t = 0; t < tiles.size(); t++) {
+			final Rectangle r = tiles.get(t);
+			final int[] share = shares[t];
+			shares[t] = null;
+			// a tile's index and task are dropped as soon as it is filled, keeping only its error counts, so only the
+			// tiles being filled hold an index at once however many tiles there are
+			running.add(TILE_POOL.submit(() -> {
+				final List<Point> tilePoints = Program.generateAllPoints(r.width, r.height, direction);
+				for (final Point p : tilePoints) {
+					p.translate(r.x, r.y);
+				}
+				// the tile reports how many of its pixels are done as it goes; add the difference to the total
+				final long[] done = new long[1];
+				final ImageTask tile = new ImageTask(preImage, result, tilePoints, colors.rebuild(share), comparisonType,
+						boxRadius, epsilon, null, null, (percent) -> {
+							final long now = (long) (percent * tilePoints.size() / 100);
+							progress.accept((double) filled.addAndGet(now - done[0]) / pixels * 100);
+							done[0] = now;
+						}, r, this, null, 0);
+				tile.fill();
+				addErrors(tile);
+			}));
+		}
+		for (final ForkJoinTask<?> task : running) {
+			task.join();
+		}
+		progress.accept(isStopped() ? (double) filled.get() / pixels * 100 : 100);
+		return !isStopped();
+	}
 
-					average = new Color(neighborAverageRed + centerRed, neighborAverageGreen + centerGreen,
-							neighborAverageBlue + centerBlue);
+	// adds the error a tile measured to this task's, from the thread that filled the tile
+	private synchronized void addErrors(final ImageTask tile) {
+		samples += tile.samples;
+		addedError += tile.addedError;
+		worstRatio = Math.max(worstRatio, tile.worstRatio);
+	}
 
-				}
-			}
-				break;
-			case RANDOM_5x5: {
-				int numToAverage = 5 * 5 / 2;
-				int reds = 0;
-				int greens = 0;
-				int blues = 0;
-
-				for (int i = 0; i < numToAverage; i++) {
-					int y = rand.nextInt(5) - 2;
-					int x = rand.nextInt(5) - 2;
+	/**
+	 * Computes the color the pixel at a point should be matched against.
+	 *
+	 * @param p
+	 * @return packed target color
+	 */
+	private int targetColor(final Point p) {
+		final int width = preImage.getWidth();
+		final int height = preImage.getHeight();
+		switch (comparisonType) {
+		case SINGLE_PIXEL:
+			return 0xFF000000 | input[p.y * width + p.x];
+		case AVERAGE_PRE_3x3:
+			// divided by 9 even where the square is cut off by the edge, as this mode always has
+			return boxes.average(p.x, p.y, 1, 9);
+		case AVERAGE_PRE_BOX:
+			return boxes.average(p.x, p.y, boxRadius);
+		case AVERAGE_POST_5x5: {
+			final float NEIGHBOR_WEIGHT = 0.5f;
+			int reds = 0;
+			int greens = 0;
+			int blues = 0;
+			int i = 0;
+			for (int y = -2; y <= 2; y++) {
+				for (int x = -2; x <= 2; x++) {
 					int posX = p.x + x;
 					int posY = p.y + y;
-					if (posX < 0 || posY < 0 || posX >= preImage.getWidth() || posY >= preImage.getHeight()) {
+					if (!bounds.contains(posX, posY)) {
 						continue;
 					}
 
-					Color color = new Color(preImage.getRGB(posX, posY));
-					reds += color.getRed();
-					greens += color.getGreen();
-					blues += color.getBlue();
+					final int color = filled[(posY - bounds.y) * bounds.width + posX - bounds.x];
+					if (color != 0) {
+						i++;
+						reds += color >> 16 & 0xFF;
+						greens += color >> 8 & 0xFF;
+						blues += color & 0xFF;
+					}
 				}
-				average = new Color(reds / numToAverage, greens / numToAverage, blues / numToAverage);
 			}
-				break;
+			final int center = input[p.y * width + p.x];
+			if (i == 0) {
+				// if first pixel, do single pixel method
+				return 0xFF000000 | center;
 			}
+			int neighborAverageRed = (int) (reds / i * NEIGHBOR_WEIGHT);
+			int neighborAverageGreen = (int) (greens / i * NEIGHBOR_WEIGHT);
+			int neighborAverageBlue = (int) (blues / i * NEIGHBOR_WEIGHT);
+
+			int centerRed = (int) ((center >> 16 & 0xFF) * (1f - NEIGHBOR_WEIGHT));
+			int centerGreen = (int) ((center >> 8 & 0xFF) * (1f - NEIGHBOR_WEIGHT));
+			int centerBlue = (int) ((center & 0xFF) * (1f - NEIGHBOR_WEIGHT));
+
+			return rgb(neighborAverageRed + centerRed, neighborAverageGreen + centerGreen, neighborAverageBlue + centerBlue);
+		}
+		case RANDOM_5x5: {
+			int numToAverage = 5 * 5 / 2;
+			int reds = 0;
+			int greens = 0;
+			int blues = 0;
 
-			Color nearest = (Color) colors
-					.nearest(new int[] { average.getRed(), average.getGreen(), average.getBlue() });
-			colors.delete(new int[] { nearest.getRed(), nearest.getGreen(), nearest.getBlue() });
-			return nearest;
-		} catch (final KeySizeException | KeyMissingException e) {
-			throw new RuntimeException(e);
+			for (int i = 0; i < numToAverage; i++) {
+				int y = rand.nextInt(5) - 2;
+				int x = rand.nextInt(5) - 2;
+				int posX = p.x + x;
+				int posY = p.y + y;
+				if (posX < 0 || posY < 0 || posX >= width || posY >= height) {
+					continue;
+				}
+
+				final int color = input[posY * width + posX];
+				reds += color >> 16 & 0xFF;
+				greens += color >> 8 & 0xFF;
+				blues += color & 0xFF;
+			}
+			return rgb(reds / numToAverage, greens / numToAverage, blues / numToAverage);
 		}
+		}
+		throw new IllegalStateException("Unknown comparison type " + comparisonType);
 	}
 
-	private static void saveImage(final BufferedImage image) {
-		final File outputfile = new File("image.png");
-		try {
-			ImageIO.write(image, "png", outputfile);
+	// opaque packed colour of channels already in range, as new Color(r, g, b).getRGB() gives
+	private static int rgb(final int red, final int green, final int blue) {
+		return 0xFF000000 | red << 16 | green << 8 | blue;
+	}
+
+	// throws UncheckedIOException if the image cannot be written, so whoever runs the task learns it was not saved
+	private static void saveImage(final BufferedImage image, final File outputfile) {
+		// opened here rather than by ImageIO, which prints the stack trace of a file it cannot open before it throws
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(outputfile.toPath()))) {
+			ImageIO.write(image, "png", out);
 		} catch (final IOException e) {
-			e.printStackTrace();
+			throw new UncheckedIOException("Cannot write " + outputfile, e);
 		}
 	}
 
-	public synchronized boolean isStopped() {
-		synchronized (this) {
-			return stop;
-		}
+	/**
+	 * @return the image the task draws into
+	 */
+	public BufferedImage getResult() {
+		return result;
 	}
 
+	public boolean isStopped() {
+		return stop || parent != null && parent.isStopped();
+	}
+
+	/**
+	 * Asks the task to stop. It stops before its next query, leaving the image as far as it got.
+	 */
 	public void setStop(final boolean stop) {
-		synchronized (this) {
-			this.stop = stop;
-		}
+		this.stop = stop;
 	}
 
 }
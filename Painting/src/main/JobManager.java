@@ -0,0 +1,128 @@
+package main;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs image tasks on a fixed number of threads, queueing those submitted while all are busy. Each submitted task gets
+ * a {@link Job}, a future of the image it draws that cancels the task when cancelled. Jobs are forgotten as soon as they
+ * end, however they end, so finished tasks and their palettes can be collected.
+ */
+public class JobManager {
+
+	private final ThreadPoolExecutor executor;
+
+	// jobs queued or running
+	private final Set<Job> jobs = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param threads
+	 *            tasks run at once
+	 * @param queued
+	 *            tasks that can wait for a thread; more are rejected
+	 */
+	public JobManager(final int threads, final int queued) {
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queued),
+				(r) -> {
+					final Thread thread = new Thread(r, "image-job-" + count.incrementAndGet());
+					// jobs never keep the program running on their own
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Queues a task to run once a thread is free.
+	 *
+	 * @param task
+	 *            task that nothing else runs or stops
+	 * @return the job running the task
+	 * @throws RejectedExecutionException
+	 *             if the queue is full or the manager shut down
+	 */
+	public Job submit(final ImageTask task) {
+		final Job job = new Job(task);
+		jobs.add(job);
+		try {
+			executor.execute(job);
+		} catch (final RejectedExecutionException e) {
+			jobs.remove(job);
+			throw e;
+		}
+		return job;
+	}
+
+	/**
+	 * Cancels every job queued or running. Running tasks stop before their next query.
+	 */
+	public void cancelAll() {
+		for (final Job job : new ArrayList<>(jobs)) {
+			job.cancel(false);
+		}
+	}
+
+	/**
+	 * @return the number of jobs queued or running
+	 */
+	public int active() {
+		return jobs.size();
+	}
+
+	/**
+	 * Cancels every job and lets the threads end.
+	 */
+	public void shutdown() {
+		cancelAll();
+		executor.shutdown();
+	}
+
+	/**
+	 * A submitted task. Its result is the image the task drew once it finishes. Cancelling it stops the task if it is
+	 * running, by asking it to rather than by interrupting its thread, and takes it out of the queue if not. If the task
+	 * throws, the exception is printed when the job ends.
+	 */
+	public final class Job extends FutureTask<BufferedImage> {
+
+		private final ImageTask task;
+
+		private Job(final ImageTask task) {
+			super(task, task.getResult());
+			this.task = task;
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			task.setStop(true);
+			return super.cancel(false);
+		}
+
+		@Override
+		protected void done() {
+			jobs.remove(this);
+			executor.remove(this);
+			if (isCancelled()) {
+				return;
+			}
+			// the future keeps what the task threw, and nothing may ever ask for it, so print it as the thread would have
+			try {
+				get();
+			} catch (final ExecutionException e) {
+				System.err.println("Image job failed:");
+				e.getCause().printStackTrace();
+			} catch (final InterruptedException e) {
+				// cannot happen, as the job is done
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
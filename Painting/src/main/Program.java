@@ -1,14 +1,20 @@
 package main;
 
-import java.awt.Color;
 import java.awt.Point;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.DoubleConsumer;
 
+import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -18,14 +24,23 @@ import javax.swing.RowFilter.ComparisonType;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
-import kdtree.KDTree;
-import kdtree.KeyDuplicateException;
-import kdtree.KeySizeException;
+import kdtree.BucketTree;
+import kdtree.RGBTree;
+import kdtree.TreeStats;
+import palette.Backend;
+import palette.ColorIndex;
+import palette.LabIndex;
+import palette.LatticeIndex;
+import palette.Metric;
+import palette.PaletteCache;
+import palette.RebuildingIndex;
 
 public class Program {
 	static Direction currentDirection = Direction.RIGHT;
 	// This adds more colors to choose from, more = slower
 	static float accuracy = 2f;
+	// Lets the palette hand out colours up to 1 + epsilon times further than the nearest, more = faster
+	static float epsilon = 0f;
 	private static BufferedImage image;
 	static ImageIcon rightIcon;
 	static ImageIcon leftIcon;
@@ -33,8 +48,26 @@ public class Program {
 	static ControlPanel controls;
 	private static BufferedImage newImage;
 	static JFrame frame;
-	private static List<ImageTask> tasks = new ArrayList<>();
+	// runs the images being made, as many at once as there are cores, and queues a few more
+	private static final JobManager jobs = new JobManager(Runtime.getRuntime().availableProcessors(), 16);
 	public static ComparisonType comparisonType = ComparisonType.SINGLE_PIXEL;
+	// pixels the box of AVERAGE_PRE_BOX reaches out from its centre on each side
+	static int boxRadius = 2;
+	// distance between colours the palette minimises
+	static Metric metric = Metric.EUCLIDEAN;
+	// matches colours by their distance in CIELAB rather than RGB
+	static boolean matchLab = false;
+	static Backend backend = Backend.KD_TREE;
+	// counts the work the palette index does, and prints it while the image is made
+	static boolean collectStats = false;
+	// fills tiles of this size in parallel, each with its own share of the palette, or the whole image on one thread if 0
+	static int tileSize = 0;
+	// index file of a custom palette, or null to use a lattice sized by accuracy
+	static Path palette;
+	// built palettes are kept here between runs, and the most recent ones in memory up to this many colors in all
+	private static final Path PALETTE_DIRECTORY = Paths.get("palettes");
+	private static final long CACHED_COLORS = 1 << 25;
+	private static final PaletteCache paletteCache = new PaletteCache(PALETTE_DIRECTORY, CACHED_COLORS);
 
 	public static void main(final String[] args) throws Exception {
 		// Set cross-platform Java L&F (also called "Metal")
@@ -75,9 +108,7 @@ public class Program {
 		panel.repaint();
 
 		// stop other tasks
-		for (final ImageTask task : tasks) {
-			task.setStop(true);
-		}
+		jobs.cancelAll();
 	}
 
 	/**
@@ -87,18 +118,78 @@ public class Program {
 	 * @return
 	 */
 	private static void createNewImage(final BufferedImage image, final BufferedImage result, final JPanel panel) {
-		System.out.println("Generating points");
-		final List<Point> points = generateAllPoints(image.getWidth(), image.getHeight(), currentDirection);
+		final ImageTask task = newTask(image, result, new File("image.png"), (percent) -> {
+			synchronized (controls) {
+				controls.setCompletion((float) percent);
+			}
+			panel.repaint();
+		});
+		if (task == null) {
+			return;
+		}
+		try {
+			jobs.submit(task);
+		} catch (final RejectedExecutionException e) {
+			System.out.println("Too many images queued, wait for some to finish");
+		}
+	}
 
+	/**
+	 * Sets up a task recreating an image with the current settings, with a palette of its own.
+	 *
+	 * @param image
+	 *            the image to recreate
+	 * @param result
+	 *            image of the same size to draw into
+	 * @param output
+	 *            file the result is saved to once finished, or null to not save it
+	 * @param progress
+	 *            told the percentage done as the task runs
+	 * @return the task, not yet started, or null if the custom palette cannot be read
+	 */
+	static ImageTask newTask(final BufferedImage image, final BufferedImage result, final File output,
+			final DoubleConsumer progress) {
 		System.out.println("Generating colors");
-		final KDTree colors = generateAllColors((int) (image.getWidth() * image.getHeight() * accuracy), image.getWidth() * image.getHeight());
+		ColorIndex colors;
+		if (palette == null) {
+			colors = generateAllColors((int) (image.getWidth() * image.getHeight() * accuracy), image.getWidth() * image.getHeight());
+		} else {
+			try {
+				colors = paletteCache.custom(palette);
+			} catch (final IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
 
-		System.out.println("Number of points: " + points.size() + ", Number of colors: " + colors.size());
+		final int pixels = image.getWidth() * image.getHeight();
+		System.out.println("Number of points: " + pixels + ", Number of colors: " + colors.size());
+		if (colors.size() < pixels) {
+			System.out.println("Not enough colors for every point, the rest will be left black");
+		}
+		if (matchLab) {
+			colors = new LabIndex(colors);
+		}
+		colors.setEpsilon(epsilon);
+		colors.setMetric(metric);
+		final boolean tiled = tileSize > 0 && (image.getWidth() > tileSize || image.getHeight() > tileSize);
+		if (collectStats && tiled) {
+			System.out.println("No statistics when filling tiles in parallel");
+		}
+		final TreeStats stats = collectStats && !tiled ? attachStats(colors) : null;
+		if (colors instanceof RGBTree || colors instanceof BucketTree) {
+			// trees slow down as they drain, so rebuild them in the background rather than ever stopping the fill. The
+			// tiles of a tiled task build their indexes from this one, which makes them rebuild too.
+			colors = new RebuildingIndex(colors);
+		}
 
-		final ImageTask task = new ImageTask(image, result, points, colors, panel, controls, comparisonType);
-		final Thread thread = new Thread(task);
-		tasks.add(task);
-		thread.start();
+		if (tiled) {
+			return new ImageTask(image, result, currentDirection, tileSize, colors, comparisonType, boxRadius, epsilon, output,
+					progress);
+		}
+		System.out.println("Generating points");
+		final List<Point> points = generateAllPoints(image.getWidth(), image.getHeight(), currentDirection);
+		return new ImageTask(image, result, points, colors, comparisonType, boxRadius, epsilon, stats, output, progress);
 	}
 
 	/**
@@ -109,7 +200,7 @@ public class Program {
 	 * @param dir
 	 * @return
 	 */
-	private static List<Point> generateAllPoints(final int width, final int height, final Direction dir) {
+	static List<Point> generateAllPoints(final int width, final int height, final Direction dir) {
 		final List<Point> points = new ArrayList<>(width * height);
 
 		switch (dir) {
@@ -198,32 +289,68 @@ public class Program {
 		}
 	}
 
-	private static KDTree generateAllColors(int i, final int pixels) {
+	private static ColorIndex generateAllColors(int i, final int pixels) {
 		if (i > 255 * 255 * 255) {
 			i = 255 * 255 * 255;
 		} else if (i < pixels) {
 			i = pixels;
 		}
-		final float perColor = (float) Math.cbrt(i);
-		assert perColor >= 0 && perColor <= 255;
-		System.out.println("Generating with this many per channel: " + perColor);
-
-		final KDTree tree = new KDTree(3);
-
-		final float step = 255f / perColor;
-
-		for (float r = 0; r < 255; r += step) {
-			for (float g = 0; g < 255; g += step) {
-				for (float b = 0; b < 255; b += step) {
-					try {
-						tree.insert(new int[] { (int) r, (int) g, (int) b }, new Color((int) r, (int) g, (int) b));
-					} catch (KeySizeException | KeyDuplicateException e) {
-						e.printStackTrace();
-					}
-				}
-			}
+		final int[] levels = LatticeIndex.levels(i);
+		System.out.println("Generating with this many per channel: " + levels.length);
+
+		return paletteCache.lattice(backend, levels);
+	}
+
+	// attaches fresh counters to a palette index that can count, returning them, or null for one that cannot
+	private static TreeStats attachStats(final ColorIndex colors) {
+		final TreeStats stats = new TreeStats();
+		if (colors instanceof RGBTree) {
+			final RGBTree tree = (RGBTree) colors;
+			tree.setStats(stats);
+			System.out.println("Palette tree: " + tree.shape());
+		} else if (colors instanceof BucketTree) {
+			final BucketTree tree = (BucketTree) colors;
+			tree.setStats(stats);
+			System.out.println("Palette tree: " + tree.shape());
+		} else if (colors instanceof LabIndex) {
+			((LabIndex) colors).setStats(stats);
+		} else {
+			System.out.println("No statistics for " + colors.getClass().getSimpleName());
+			return null;
 		}
-		return tree;
+		return stats;
+	}
+
+	/**
+	 * Turns a file picked as a custom palette into an index file. Index files are used as they are. Images are indexed
+	 * with the current backend, holding each distinct colour of the image once, and saved with the cached palettes.
+	 *
+	 * @param file
+	 *            an index file or an image
+	 * @return the index file to use
+	 * @throws IOException
+	 *             if the file is neither, or the index cannot be saved
+	 * @throws UnsupportedOperationException
+	 *             if the current backend only holds lattices
+	 */
+	static Path preparePalette(final Path file) throws IOException {
+		if (PaletteCache.isIndexFile(file)) {
+			return file;
+		}
+
+		final BufferedImage colorsImage = ImageIO.read(file.toFile());
+		if (colorsImage == null) {
+			throw new IOException("Not an image or palette file: " + file);
+		}
+		final int[] colors = colorsImage.getRGB(0, 0, colorsImage.getWidth(), colorsImage.getHeight(), null, 0,
+				colorsImage.getWidth());
+		final ColorIndex index = backend.custom(colors);
+
+		Files.createDirectories(PALETTE_DIRECTORY);
+		final Path indexFile = PALETTE_DIRECTORY.resolve(file.getFileName() + "-" + backend.name().toLowerCase() + ".pal");
+		PaletteCache.save(index, indexFile);
+		System.out.println("Saved palette of " + index.size() + " colors to " + indexFile);
+		return indexFile;
 	}
 
 	enum Direction {
@@ -239,6 +366,7 @@ public class Program {
 		AVERAGE_PRE_3x3, // the average of all pixels in 3x3 area in the input
 		AVERAGE_POST_5x5, // the average of all already set pixels in a 5x5 area of the output
 		RANDOM_5x5,
+		AVERAGE_PRE_BOX, // the average of all pixels in a square of boxRadius around the pixel in the input
 		
 	}
 }
@@ -0,0 +1,108 @@
+package main;
+
+import java.util.stream.IntStream;
+
+/**
+ * Sums of the red, green and blue channels of every rectangle of an image from its top left corner, from which the sum
+ * over any box takes four lookups per channel, whatever its size. Built once per image, in parallel.
+ *
+ * The sums of large images overflow an int, but the sums are only ever added and subtracted, so they come out right
+ * modulo 2^32, and no box of an image of at most 255 * 255 * 255 pixels sums to more than that.
+ */
+final class SummedAreaTable {
+
+	// columns summed down the table by each task of the second pass
+	private static final int STRIP = 1024;
+
+	private final int width;
+	private final int height;
+
+	// sums of the pixels above and left of each corner, (width + 1) by (height + 1) of them with red, green and blue
+	// next to each other
+	private final int[] sums;
+	private final int stride;
+
+	/**
+	 * @param pixels
+	 *            packed colours of the image, row by row
+	 * @param width
+	 *            width of the image
+	 * @param height
+	 *            height of the image
+	 */
+	SummedAreaTable(final int[] pixels, final int width, final int height) {
+		this.width = width;
+		this.height = height;
+		stride = (width + 1) * 3;
+		sums = new int[stride * (height + 1)];
+
+		// running sums along each row, one task per row
+		IntStream.range(0, height).parallel().forEach(y -> {
+			int red = 0;
+			int green = 0;
+			int blue = 0;
+			int i = (y + 1) * stride + 3;
+			for (int x = 0; x < width; x++) {
+				final int c = pixels[y * width + x];
+				red += c >> 16 & 0xFF;
+				green += c >> 8 & 0xFF;
+				blue += c & 0xFF;
+				sums[i++] = red;
+				sums[i++] = green;
+				sums[i++] = blue;
+			}
+		});
+		// then down each column, in strips of columns so that every task reads the rows in order
+		IntStream.range(0, (stride + STRIP - 1) / STRIP).parallel().forEach(s -> {
+			final int to = Math.min((s + 1) * STRIP, stride);
+			for (int row = 2 * stride; row < sums.length; row += stride) {
+				for (int i = s * STRIP; i < to; i++) {
+					sums[row + i] += sums[row - stride + i];
+				}
+			}
+		});
+	}
+
+	/**
+	 * Averages the pixels in a square around a pixel, over the part of the square inside the image.
+	 *
+	 * @param x
+	 *            column of the pixel
+	 * @param y
+	 *            row of the pixel
+	 * @param radius
+	 *            pixels the square reaches out from the pixel on each side
+	 * @return the opaque packed average colour
+	 */
+	int average(final int x, final int y, final int radius) {
+		final long area = (long) (Math.min(x + radius + 1, width) - Math.max(x - radius, 0))
+				* (Math.min(y + radius + 1, height) - Math.max(y - radius, 0));
+		return average(x, y, radius, area);
+	}
+
+	/**
+	 * Sums the pixels in a square around a pixel that are inside the image and divides the sums by a given count.
+	 *
+	 * @param x
+	 *            column of the pixel
+	 * @param y
+	 *            row of the pixel
+	 * @param radius
+	 *            pixels the square reaches out from the pixel on each side
+	 * @param divisor
+	 *            count to divide the sums by, at least as large as the number of pixels summed
+	 * @return the opaque packed colour of the channel sums divided by the count
+	 */
+	int average(final int x, final int y, final int radius, final long divisor) {
+		final int left = Math.max(x - radius, 0) * 3;
+		final int right = Math.min(x + radius + 1, width) * 3;
+		final int top = Math.max(y - radius, 0) * stride;
+		final int bottom = Math.min(y + radius + 1, height) * stride;
+		int rgb = 0xFF;
+		for (int c = 0; c < 3; c++) {
+			final int sum = sums[bottom + right + c] - sums[top + right + c] - sums[bottom + left + c] + sums[top + left + c];
+			rgb = rgb << 8 | (int) ((sum & 0xFFFFFFFFL) / divisor);
+		}
+		return rgb;
+	}
+}
@@ -0,0 +1,87 @@
+package palette;
+
+import kdtree.BucketTree;
+import kdtree.RGBTree;
+
+/**
+ * The structures a palette can be indexed with. The KD-trees and the octree hold any set of colours and can be saved to
+ * index files; the lattice index only holds lattices. The octree and the lattice index build fast enough that lattice
+ * palettes are never saved for them.
+ */
+public enum Backend {
+	KD_TREE {
+		@Override
+		public ColorIndex build(final int[] levels) {
+			return new RGBTree(colors(levels));
+		}
+
+		@Override
+		public ColorIndex custom(final int[] colors) {
+			return new RGBTree(colors);
+		}
+	},
+	KD_BUCKETS {
+		@Override
+		public ColorIndex build(final int[] levels) {
+			return new BucketTree(colors(levels));
+		}
+
+		@Override
+		public ColorIndex custom(final int[] colors) {
+			return new BucketTree(colors);
+		}
+	},
+	OCTREE {
+		@Override
+		public ColorIndex build(final int[] levels) {
+			return new OctreeIndex(colors(levels));
+		}
+
+		@Override
+		public ColorIndex custom(final int[] colors) {
+			return new OctreeIndex(colors);
+		}
+	},
+	LATTICE {
+		@Override
+		public ColorIndex build(final int[] levels) {
+			return new LatticeIndex(levels);
+		}
+	};
+
+	/**
+	 * Builds an index holding every colour of a lattice.
+	 *
+	 * @param levels
+	 *            channel values of the lattice, as from {@link LatticeIndex#levels(int)}
+	 * @return the index, with every colour free
+	 */
+	public abstract ColorIndex build(int[] levels);
+
+	/**
+	 * Builds an index holding an arbitrary set of colours.
+	 *
+	 * @param colors
+	 *            packed colours; duplicates are dropped
+	 * @return the index, with every colour free
+	 * @throws UnsupportedOperationException
+	 *             if this backend only holds lattices
+	 */
+	public ColorIndex custom(final int[] colors) {
+		throw new UnsupportedOperationException(this + " only holds lattice palettes");
+	}
+
+	// every packed colour of a lattice
+	private static int[] colors(final int[] levels) {
+		final int[] colors = new int[levels.length * levels.length * levels.length];
+		int i = 0;
+		for (final int r : levels) {
+			for (final int g : levels) {
+				for (final int b : levels) {
+					colors[i++] = r << 16 | g << 8 | b;
+				}
+			}
+		}
+		return colors;
+	}
+}
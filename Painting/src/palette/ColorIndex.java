@@ -0,0 +1,137 @@
+package palette;
+
+/**
+ * A palette of unique colours that hands out the free colour nearest to a target and marks it used, so that no colour
+ * is handed out twice. Colours are packed 24-bit RGB ints (<TT>0xRRGGBB</TT>); alpha bytes of arguments are ignored.
+ * Implementations are not thread-safe.
+ *
+ * @see Backend
+ */
+public interface ColorIndex {
+
+	// returned by nearestAndRemove() when no colour is left
+	int NONE = -1;
+
+	/**
+	 * Finds the free colour nearest to a colour and marks it used.
+	 *
+	 * @param rgb
+	 *            packed target colour
+	 * @return the nearest free packed colour, or {@link #NONE} if none is left
+	 */
+	int nearestAndRemove(int rgb);
+
+	/**
+	 * Finds the free colour nearest to a colour without marking it used. This search is always exact, whatever
+	 * {@link #setEpsilon(double)} says.
+	 *
+	 * @param rgb
+	 *            packed target colour
+	 * @return the nearest free packed colour, or {@link #NONE} if none is left
+	 */
+	int nearest(int rgb);
+
+	/**
+	 * Trades accuracy for speed in the searches that mark colours used: they may return a colour up to
+	 * <TT>1 + epsilon</TT> times as far from the target as the nearest free one. Zero, the default, keeps them exact.
+	 *
+	 * @param epsilon
+	 *            allowed relative error in distance, non-negative
+	 */
+	void setEpsilon(double epsilon);
+
+	/**
+	 * Sets the distance every search minimises, {@link Metric#EUCLIDEAN} by default. Epsilon applies to the chosen
+	 * distance.
+	 *
+	 * @param metric
+	 *            distance to minimise
+	 */
+	void setMetric(Metric metric);
+
+	/**
+	 * @param a
+	 *            packed colour
+	 * @param b
+	 *            packed colour
+	 * @return the distance between two colours that the searches minimise, squared
+	 */
+	int distance(int a, int b);
+
+	/**
+	 * Claims the <I>n</I> free colours nearest to a colour, in ascending order of distance. The result is the same as
+	 * <I>n</I> calls to {@link #nearestAndRemove(int)} with the same colour, which is what this default does;
+	 * implementations that can find all of them in one search should.
+	 *
+	 * @param rgb
+	 *            packed target colour
+	 * @param n
+	 *            how many colours to claim
+	 * @param out
+	 *            receives the claimed packed colours, nearest first; at least <I>n</I> long
+	 * @return the number of colours claimed, less than <I>n</I> only if the index ran out
+	 */
+	default int nearestAndRemove(final int rgb, final int n, final int[] out) {
+		for (int i = 0; i < n; i++) {
+			final int c = nearestAndRemove(rgb);
+			if (c == NONE) {
+				return i;
+			}
+			out[i] = c;
+		}
+		return n;
+	}
+
+	/**
+	 * Marks a colour used if it is free, as if {@link #nearestAndRemove(int)} had handed it out.
+	 *
+	 * @param rgb
+	 *            packed colour
+	 * @return whether the colour was free
+	 */
+	boolean remove(int rgb);
+
+	/**
+	 * @return the number of free colours
+	 */
+	int size();
+
+	/**
+	 * @return the free packed colours, in no particular order
+	 */
+	int[] toArray();
+
+	/**
+	 * Returns an index holding the same free colours that can be used independently of this one. What the two indexes
+	 * mark used afterwards is private to each; whatever neither changes, such as the tree layout, is shared rather than
+	 * copied, so forking is far cheaper than building. A built palette can be kept unused and forked for every run,
+	 * and any number of threads may fork it at once.
+	 *
+	 * @return the new index
+	 */
+	ColorIndex fork();
+
+	/**
+	 * Compacts the index after many colours have been used. Indexes that do not slow down as they drain return
+	 * themselves.
+	 *
+	 * @return the index to use from now on
+	 */
+	default ColorIndex rebuild() {
+		return this;
+	}
+
+	/**
+	 * Builds an index of the same kind and with the same settings, such as epsilon, that holds other colours. Nothing
+	 * but the settings is read from this index, so the build may run on another thread while this index is in use.
+	 *
+	 * @param colors
+	 *            packed colours; duplicates are dropped
+	 * @return the new index, with every colour free
+	 * @throws UnsupportedOperationException
+	 *             if this kind of index cannot hold arbitrary colours
+	 */
+	default ColorIndex rebuild(final int[] colors) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot hold arbitrary colours");
+	}
+}
@@ -0,0 +1,214 @@
+package palette;
+
+import java.util.Arrays;
+
+import kdtree.RGBTree;
+import kdtree.TreeStats;
+
+/**
+ * Matches colours in CIELAB instead of RGB, for output that follows perceived difference. The palette is keyed by the
+ * quantized Lab coordinates of {@link LabTable}, and the keys are searched with an {@link RGBTree}, which treats them as
+ * it would colours, so Lab searches prune and run as fast as RGB ones once built. Targets go through the same table,
+ * which costs one lookup per query.
+ *
+ * Quantization maps a few palette colours to the same key, so each key keeps a bucket of its colours and stays in the
+ * tree until the last of them is used. Any colour of a bucket is as near as any other in quantized Lab.
+ */
+public class LabIndex implements ColorIndex {
+
+	// distinct Lab keys of the palette, ascending, and the palette colours of each: the colours of keys[i] are
+	// colors[start[i]] to colors[start[i] + live[i] - 1], the free ones first
+	private final int[] keys;
+	private final int[] start;
+	private final int[] live;
+	private final int[] colors;
+	private int count;
+
+	private final RGBTree tree;
+
+	// settings of the searches, kept to pass on to rebuilt indexes
+	private double epsilon;
+	private Metric metric = Metric.EUCLIDEAN;
+
+	/**
+	 * Indexes the free colours of another index in Lab.
+	 *
+	 * @param palette
+	 *            index whose free colours to hold; left as it is
+	 */
+	public LabIndex(final ColorIndex palette) {
+		this(palette.toArray());
+	}
+
+	/**
+	 * Indexes colours in Lab.
+	 *
+	 * @param palette
+	 *            packed colours; duplicates are dropped and alpha bytes ignored
+	 */
+	public LabIndex(final int[] palette) {
+		// sort the colours by key, with the key in the high word
+		final long[] byKey = new long[palette.length];
+		for (int i = 0; i < palette.length; i++) {
+			final int c = palette[i] & 0xFFFFFF;
+			byKey[i] = (long) LabTable.key(c) << 32 | c;
+		}
+		Arrays.parallelSort(byKey);
+
+		colors = new int[byKey.length];
+		final int[] k = new int[byKey.length];
+		final int[] s = new int[byKey.length + 1];
+		int n = 0;
+		int keyCount = 0;
+		for (int i = 0; i < byKey.length; i++) {
+			if (i > 0 && byKey[i] == byKey[i - 1]) {
+				continue;
+			}
+			final int key = (int) (byKey[i] >>> 32);
+			if (keyCount == 0 || k[keyCount - 1] != key) {
+				k[keyCount] = key;
+				s[keyCount++] = n;
+			}
+			colors[n++] = (int) byKey[i];
+		}
+		s[keyCount] = n;
+		count = n;
+
+		keys = Arrays.copyOf(k, keyCount);
+		start = Arrays.copyOf(s, keyCount + 1);
+		live = new int[keyCount];
+		for (int i = 0; i < keyCount; i++) {
+			live[i] = start[i + 1] - start[i];
+		}
+		tree = new RGBTree(keys);
+	}
+
+	// fork of another index
+	private LabIndex(final LabIndex from) {
+		keys = from.keys;
+		start = from.start;
+		live = from.live.clone();
+		colors = from.colors.clone();
+		count = from.count;
+		tree = from.tree.fork();
+		epsilon = from.epsilon;
+		metric = from.metric;
+	}
+
+	/**
+	 * Returns an index sharing the keys with this one, with its own copy of the tree and the buckets.
+	 */
+	@Override
+	public LabIndex fork() {
+		return new LabIndex(this);
+	}
+
+	@Override
+	public int nearestAndRemove(final int rgb) {
+		// the key stays in the tree until its last colour is used, so most claims leave the tree alone
+		final int key = tree.nearestWithinEpsilon(LabTable.key(rgb));
+		if (key == NONE) {
+			return NONE;
+		}
+		final int i = Arrays.binarySearch(keys, key);
+		final int c = colors[start[i] + --live[i]];
+		count--;
+		if (live[i] == 0) {
+			tree.remove(key);
+		}
+		return c;
+	}
+
+	@Override
+	public int nearest(final int rgb) {
+		final int key = tree.nearest(LabTable.key(rgb));
+		return key == NONE ? NONE : colors[start[Arrays.binarySearch(keys, key)]];
+	}
+
+	@Override
+	public boolean remove(final int rgb) {
+		final int c = rgb & 0xFFFFFF;
+		final int i = Arrays.binarySearch(keys, LabTable.key(c));
+		if (i < 0) {
+			return false;
+		}
+		final int end = start[i] + live[i];
+		for (int p = start[i]; p < end; p++) {
+			if (colors[p] == c) {
+				colors[p] = colors[end - 1];
+				colors[end - 1] = c;
+				count--;
+				if (--live[i] == 0) {
+					tree.remove(keys[i]);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Lets searches settle for a key up to <TT>1 + epsilon</TT> times as far in Lab as the nearest.
+	 */
+	@Override
+	public void setEpsilon(final double epsilon) {
+		tree.setEpsilon(epsilon);
+		this.epsilon = epsilon;
+	}
+
+	/**
+	 * Weights L*, a* and b* as the metric weights red, green and blue. Distances in Lab are already perceptual, so
+	 * {@link Metric#EUCLIDEAN}, the default, is the usual choice.
+	 */
+	@Override
+	public void setMetric(final Metric metric) {
+		this.metric = metric;
+		tree.setMetric(metric);
+	}
+
+	/**
+	 * @return the weighted squared distance between the Lab keys of two colours
+	 */
+	@Override
+	public int distance(final int a, final int b) {
+		return metric.distance(LabTable.key(a), LabTable.key(b));
+	}
+
+	/**
+	 * Starts or stops counting the cost of the searches of the Lab key tree.
+	 *
+	 * @param stats
+	 *            counters to add to, or null to stop counting
+	 * @see RGBTree#setStats(TreeStats)
+	 */
+	public void setStats(final TreeStats stats) {
+		tree.setStats(stats);
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public int[] toArray() {
+		final int[] free = new int[count];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			System.arraycopy(colors, start[i], free, n, live[i]);
+			n += live[i];
+		}
+		return free;
+	}
+
+	/**
+	 * Builds a Lab index of other colours with this one's epsilon and metric.
+	 */
+	@Override
+	public LabIndex rebuild(final int[] colors) {
+		final LabIndex index = new LabIndex(colors);
+		index.setEpsilon(epsilon);
+		index.setMetric(metric);
+		return index;
+	}
+}
@@ -0,0 +1,83 @@
+package palette;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Converts packed sRGB colours to CIELAB (D65) quantized to 8 bits per coordinate, packed like a colour with L* in the
+ * red byte, a* in the green byte and b* in the blue byte. Every coordinate is scaled by the same {@link #SCALE}, so
+ * squared euclidean distance between packed keys is CIE76 delta E squared, times the scale squared.
+ *
+ * Conversion goes through a table of every 24-bit colour, built in parallel the first time it is needed and shared by
+ * all runs from then on. The table lives off the heap, so it costs the garbage collector nothing however long it lives.
+ */
+public final class LabTable {
+
+	/**
+	 * Steps of the quantized coordinates per unit of L*, a* and b*. The sRGB gamut spans L* 0 to 100, a* -86 to 98 and
+	 * b* -108 to 95, which this fits into 8 bits.
+	 */
+	public static final double SCALE = 1.25;
+
+	// added to a* and b* before scaling to make them non-negative
+	private static final double A_OFFSET = 87;
+	private static final double B_OFFSET = 108;
+
+	private LabTable() {
+	}
+
+	/**
+	 * @param rgb
+	 *            packed colour; the alpha byte is ignored
+	 * @return the packed quantized Lab coordinates of the colour
+	 */
+	public static int key(final int rgb) {
+		return Holder.TABLE.get(rgb & 0xFFFFFF);
+	}
+
+	// the table is built when the holder class is first used, which the JVM makes thread-safe
+	private static final class Holder {
+		static final IntBuffer TABLE = build();
+	}
+
+	private static IntBuffer build() {
+		final double[] linear = new double[256];
+		for (int c = 0; c < 256; c++) {
+			final double v = c / 255.0;
+			linear[c] = v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+		}
+
+		final IntBuffer table = ByteBuffer.allocateDirect(4 << 24).order(ByteOrder.nativeOrder()).asIntBuffer();
+		IntStream.range(0, 256).parallel().forEach(r -> {
+			for (int g = 0; g < 256; g++) {
+				for (int b = 0; b < 256; b++) {
+					final int rgb = r << 16 | g << 8 | b;
+					table.put(rgb, quantize(linear[r], linear[g], linear[b]));
+				}
+			}
+		});
+		return table;
+	}
+
+	// packed quantized Lab of a colour given as linear sRGB
+	private static int quantize(final double r, final double g, final double b) {
+		final double x = f((0.4124564 * r + 0.3575761 * g + 0.1804375 * b) / 0.95047);
+		final double y = f(0.2126729 * r + 0.7151522 * g + 0.0721750 * b);
+		final double z = f((0.0193339 * r + 0.1191920 * g + 0.9503041 * b) / 1.08883);
+		final int l = clamp((116 * y - 16) * SCALE);
+		final int a = clamp((500 * (x - y) + A_OFFSET) * SCALE);
+		final int bb = clamp((200 * (y - z) + B_OFFSET) * SCALE);
+		return l << 16 | a << 8 | bb;
+	}
+
+	private static double f(final double t) {
+		final double d = 6.0 / 29;
+		return t > d * d * d ? Math.cbrt(t) : t / (3 * d * d) + 4.0 / 29;
+	}
+
+	private static int clamp(final double v) {
+		return (int) Math.max(0, Math.min(255, Math.round(v)));
+	}
+}
@@ -0,0 +1,473 @@
+package palette;
+
+/**
+ * LatticeIndex holds a palette of every colour on a regular r/g/b lattice without storing the colours themselves. The
+ * lattice uses the same levels on each channel, so a colour is identified by the level indices of its channels, and
+ * all the index keeps is whether each lattice cell is still free: one bit per colour, in blocks of 4x4x4 cells that
+ * fill one <TT>long</TT> each. Superblocks of 4x4x4 blocks also count their free cells.
+ *
+ * Nearest free colour queries expand shells of superblocks around the superblock holding the target, skipping empty
+ * superblocks and blocks and any whose box is further than the best colour so far, and stop as soon as the next shell
+ * cannot hold anything closer. The cost of a query depends on how far the nearest free colour is, not on the size of
+ * the palette.
+ */
+public class LatticeIndex implements ColorIndex {
+
+	// cells per block along each axis is 1 << BLOCK_BITS, cells per superblock 1 << SUPER_BITS
+	private static final int BLOCK_BITS = 2;
+	private static final int SUPER_BITS = 4;
+	private static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+
+	// pruning bounds are scaled by 1 / (1 + epsilon)^2 in fixed point with SHIFT fraction bits, rounding up so
+	// that nothing is pruned that could beat the best by more than epsilon. EXACT means no scaling.
+	private static final int SHIFT = 16;
+	private static final int EXACT = 1 << SHIFT;
+
+	// channel value of each level, ascending
+	private final int[] levels;
+
+	// blocks and superblocks per axis
+	private final int blocks;
+	private final int supers;
+
+	// free cells of each block, one bit per cell
+	private final long[] free;
+
+	// free cells in each superblock
+	private final int[] counts;
+
+	private int count;
+
+	// squared distance from the current target to each block and superblock along each axis, filled per query
+	private final int[] rBlock;
+	private final int[] gBlock;
+	private final int[] bBlock;
+	private final int[] rSuper;
+	private final int[] gSuper;
+	private final int[] bSuper;
+
+	// search results so far, nearest first: squared distance in the high word, packed level indices in the low word
+	private long[] knn = new long[1];
+	private int knnSize;
+	private int knnCount;
+
+	// block at the centre of the neighbourhood scanned first
+	private int seedR;
+	private int seedG;
+	private int seedB;
+
+	// pruning bound scale of destructive searches, see setEpsilon(), and of the current search
+	private int shrink = EXACT;
+	private int searchShrink;
+	// epsilon the scale was worked out from, kept to pass on to rebuilt indexes
+	private double epsilon;
+
+	// channel weights of the distance searches minimise, see setMetric()
+	private Metric metric = Metric.EUCLIDEAN;
+
+	/**
+	 * Computes the channel levels of the lattice Program.generateAllColors has always used for a palette of about
+	 * <I>colors</I> colours: <TT>cbrt(colors)</TT> steps of equal width from 0, truncated to integers.
+	 *
+	 * @param colors
+	 *            requested palette size, between 1 and 255 * 255 * 255
+	 * @return channel values, ascending
+	 */
+	public static int[] levels(final int colors) {
+		final float perColor = (float) Math.cbrt(colors);
+		final float step = 255f / perColor;
+
+		int n = 0;
+		for (float c = 0; c < 255; c += step) {
+			n++;
+		}
+		final int[] levels = new int[n];
+		n = 0;
+		for (float c = 0; c < 255; c += step) {
+			levels[n++] = (int) c;
+		}
+		return levels;
+	}
+
+	/**
+	 * Creates an index with every colour of the lattice free.
+	 *
+	 * @param levels
+	 *            channel values of the lattice, strictly ascending, at most 256 of them
+	 */
+	public LatticeIndex(final int[] levels) {
+		this.levels = levels.clone();
+		final int n = levels.length;
+		blocks = (n + BLOCK_MASK) >> BLOCK_BITS;
+		supers = (n + (1 << SUPER_BITS) - 1) >> SUPER_BITS;
+		free = new long[blocks * blocks * blocks];
+		counts = new int[supers * supers * supers];
+		rBlock = new int[blocks];
+		gBlock = new int[blocks];
+		bBlock = new int[blocks];
+		rSuper = new int[supers];
+		gSuper = new int[supers];
+		bSuper = new int[supers];
+
+		for (int r = 0; r < n; r++) {
+			for (int g = 0; g < n; g++) {
+				for (int b = 0; b < n; b++) {
+					free[block(r, g, b)] |= 1L << bit(r, g, b);
+					counts[superblock(r, g, b)]++;
+				}
+			}
+		}
+		count = n * n * n;
+	}
+
+	// fork of another index
+	private LatticeIndex(final LatticeIndex from) {
+		levels = from.levels;
+		blocks = from.blocks;
+		supers = from.supers;
+		free = from.free.clone();
+		counts = from.counts.clone();
+		count = from.count;
+		shrink = from.shrink;
+		epsilon = from.epsilon;
+		metric = from.metric;
+		rBlock = new int[blocks];
+		gBlock = new int[blocks];
+		bBlock = new int[blocks];
+		rSuper = new int[supers];
+		gSuper = new int[supers];
+		bSuper = new int[supers];
+	}
+
+	/**
+	 * Returns an index of the same lattice with its own copy of the free bits and counts, which are all it stores.
+	 */
+	@Override
+	public LatticeIndex fork() {
+		return new LatticeIndex(this);
+	}
+
+	@Override
+	public int nearestAndRemove(final int rgb) {
+		return search(rgb, 1, shrink) == 0 ? NONE : claim((int) knn[0]);
+	}
+
+	@Override
+	public int nearest(final int rgb) {
+		return search(rgb, 1, EXACT) == 0 ? NONE : color((int) knn[0]);
+	}
+
+	/**
+	 * Finds the <I>n</I> free colours nearest to a colour in one shell search and marks them used.
+	 */
+	@Override
+	public int nearestAndRemove(final int rgb, final int n, final int[] out) {
+		final int found = search(rgb, n, shrink);
+		for (int i = 0; i < found; i++) {
+			out[i] = claim((int) knn[i]);
+		}
+		return found;
+	}
+
+	@Override
+	public boolean remove(final int rgb) {
+		final int r = levelOf(rgb >>> 16 & 0xFF);
+		final int g = levelOf(rgb >>> 8 & 0xFF);
+		final int b = levelOf(rgb & 0xFF);
+		if (r < 0 || g < 0 || b < 0 || (free[block(r, g, b)] & 1L << bit(r, g, b)) == 0) {
+			return false;
+		}
+		claim(r << 16 | g << 8 | b);
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public int[] toArray() {
+		final int[] colors = new int[count];
+		int n = 0;
+		for (int i = 0; i < free.length; i++) {
+			final int br = i / (blocks * blocks);
+			final int bg = i / blocks % blocks;
+			final int bb = i % blocks;
+			for (long word = free[i]; word != 0; word &= word - 1) {
+				final int bit = Long.numberOfTrailingZeros(word);
+				colors[n++] = color((br << BLOCK_BITS | bit >> 2 * BLOCK_BITS) << 16
+						| (bg << BLOCK_BITS | bit >> BLOCK_BITS & BLOCK_MASK) << 8 | (bb << BLOCK_BITS | bit & BLOCK_MASK));
+			}
+		}
+		return colors;
+	}
+
+	/**
+	 * Lets {@link #nearestAndRemove(int)} settle for a colour up to <TT>1 + epsilon</TT> times as far as the nearest, by
+	 * skipping blocks and shells that cannot beat the best so far by more than that. {@link #nearest(int)} stays exact.
+	 */
+	@Override
+	public void setEpsilon(final double epsilon) {
+		if (!(epsilon >= 0)) {
+			throw new IllegalArgumentException("epsilon must be non-negative: " + epsilon);
+		}
+		shrink = (int) Math.ceil(EXACT / ((1 + epsilon) * (1 + epsilon)));
+		this.epsilon = epsilon;
+	}
+
+	/**
+	 * Weights the channels in every distance and block bound the searches work out, so pruning stays exact.
+	 */
+	@Override
+	public void setMetric(final Metric metric) {
+		this.metric = metric;
+	}
+
+	@Override
+	public int distance(final int a, final int b) {
+		return metric.distance(a, b);
+	}
+
+	/**
+	 * Builds an octree of other colours with this index's epsilon and metric. Arbitrary colours rarely lie on a lattice,
+	 * and the octree is the index most like this one that holds them.
+	 */
+	@Override
+	public OctreeIndex rebuild(final int[] colors) {
+		final OctreeIndex index = new OctreeIndex(colors);
+		index.setEpsilon(epsilon);
+		index.setMetric(metric);
+		return index;
+	}
+
+	// fills knn with the n free cells nearest to a colour and returns how many there are
+	private int search(final int rgb, final int n, final int shrink) {
+		if (knn.length < n) {
+			knn = new long[n];
+		}
+		knnSize = n;
+		knnCount = 0;
+		searchShrink = shrink;
+		if (count == 0) {
+			return 0;
+		}
+
+		final int tr = rgb >>> 16 & 0xFF;
+		final int tg = rgb >>> 8 & 0xFF;
+		final int tb = rgb & 0xFF;
+		final int cr = nearestLevel(tr);
+		final int cg = nearestLevel(tg);
+		final int cb = nearestLevel(tb);
+		axisBounds(tr, metric.red(), rBlock, rSuper);
+		axisBounds(tg, metric.green(), gBlock, gSuper);
+		axisBounds(tb, metric.blue(), bBlock, bSuper);
+
+		// the blocks around the target usually hold the answer, and finding close colours there first lets the
+		// superblock search below skip almost everything
+		seedR = cr >> BLOCK_BITS;
+		seedG = cg >> BLOCK_BITS;
+		seedB = cb >> BLOCK_BITS;
+		scanBlock(seedR, seedG, seedB, tr, tg, tb);
+		for (int r = Math.max(seedR - 1, 0); r <= Math.min(seedR + 1, blocks - 1); r++) {
+			for (int g = Math.max(seedG - 1, 0); g <= Math.min(seedG + 1, blocks - 1); g++) {
+				for (int b = Math.max(seedB - 1, 0); b <= Math.min(seedB + 1, blocks - 1); b++) {
+					if (r != seedR || g != seedG || b != seedB) {
+						scanBlock(r, g, b, tr, tg, tb);
+					}
+				}
+			}
+		}
+
+		final int sr = cr >> SUPER_BITS;
+		final int sg = cg >> SUPER_BITS;
+		final int sb = cb >> SUPER_BITS;
+		for (int s = 0; s < supers; s++) {
+			if (s > 0 && shellBound(sr, sg, sb, s) >= limit()) {
+				break;
+			}
+
+			// the superblocks whose furthest offset from the start on any axis is s
+			final int rMax = Math.min(sr + s, supers - 1);
+			final int gMax = Math.min(sg + s, supers - 1);
+			final int bMax = Math.min(sb + s, supers - 1);
+			for (int r = Math.max(sr - s, 0); r <= rMax; r++) {
+				final boolean rEdge = r == sr - s || r == sr + s;
+				for (int g = Math.max(sg - s, 0); g <= gMax; g++) {
+					if (rEdge || g == sg - s || g == sg + s) {
+						for (int b = Math.max(sb - s, 0); b <= bMax; b++) {
+							scanSuperblock(r, g, b, tr, tg, tb);
+						}
+					} else {
+						if (sb - s >= 0) {
+							scanSuperblock(r, g, sb - s, tr, tg, tb);
+						}
+						if (sb + s < supers) {
+							scanSuperblock(r, g, sb + s, tr, tg, tb);
+						}
+					}
+				}
+			}
+		}
+		return knnCount;
+	}
+
+	// marks a cell given as packed level indices used and returns its colour
+	private int claim(final int cell) {
+		final int r = cell >>> 16;
+		final int g = cell >>> 8 & 0xFF;
+		final int b = cell & 0xFF;
+		free[block(r, g, b)] &= ~(1L << bit(r, g, b));
+		counts[superblock(r, g, b)]--;
+		count--;
+		return color(cell);
+	}
+
+	private int color(final int cell) {
+		return levels[cell >>> 16] << 16 | levels[cell >>> 8 & 0xFF] << 8 | levels[cell & 0xFF];
+	}
+
+	// squared distance beyond which nothing can improve the search
+	private long bound() {
+		return knnCount < knnSize ? Long.MAX_VALUE : knn[knnSize - 1] >>> 32;
+	}
+
+	// squared distance a block or shell must come closer than to be searched
+	private long limit() {
+		return knnCount < knnSize ? Long.MAX_VALUE : (knn[knnSize - 1] >>> 32) * searchShrink + EXACT - 1 >>> SHIFT;
+	}
+
+	private void scanSuperblock(final int sr, final int sg, final int sb, final int tr, final int tg, final int tb) {
+		if (counts[(sr * supers + sg) * supers + sb] == 0 || rSuper[sr] + gSuper[sg] + bSuper[sb] >= limit()) {
+			return;
+		}
+
+		final int r0 = sr << SUPER_BITS - BLOCK_BITS;
+		final int g0 = sg << SUPER_BITS - BLOCK_BITS;
+		final int b0 = sb << SUPER_BITS - BLOCK_BITS;
+		final int span = 1 << SUPER_BITS - BLOCK_BITS;
+		final int rEnd = Math.min(r0 + span, blocks);
+		final int gEnd = Math.min(g0 + span, blocks);
+		final int bEnd = Math.min(b0 + span, blocks);
+		for (int br = r0; br < rEnd; br++) {
+			final boolean rSeed = Math.abs(br - seedR) <= 1;
+			for (int bg = g0; bg < gEnd; bg++) {
+				if (rBlock[br] + gBlock[bg] >= limit()) {
+					continue;
+				}
+				final boolean rgSeed = rSeed && Math.abs(bg - seedG) <= 1;
+				for (int bb = b0; bb < bEnd; bb++) {
+					// the blocks around the seed were scanned already
+					if (!rgSeed || Math.abs(bb - seedB) > 1) {
+						scanBlock(br, bg, bb, tr, tg, tb);
+					}
+				}
+			}
+		}
+	}
+
+	private void scanBlock(final int br, final int bg, final int bb, final int tr, final int tg, final int tb) {
+		long word = free[(br * blocks + bg) * blocks + bb];
+		if (word == 0 || rBlock[br] + gBlock[bg] + bBlock[bb] >= limit()) {
+			return;
+		}
+		while (word != 0) {
+			final int bit = Long.numberOfTrailingZeros(word);
+			word &= word - 1;
+			final int r = br << BLOCK_BITS | bit >> 2 * BLOCK_BITS;
+			final int g = bg << BLOCK_BITS | bit >> BLOCK_BITS & BLOCK_MASK;
+			final int b = bb << BLOCK_BITS | bit & BLOCK_MASK;
+			final int dr = levels[r] - tr;
+			final int dg = levels[g] - tg;
+			final int db = levels[b] - tb;
+			final long d = metric.red() * dr * dr + metric.green() * dg * dg + metric.blue() * db * db;
+			if (d < bound()) {
+				offer(d << 32 | r << 16 | g << 8 | b);
+			}
+		}
+	}
+
+	// inserts into the sorted list of the best cells so far, dropping the worst if it is full
+	private void offer(final long cell) {
+		int i = knnCount < knnSize ? knnCount++ : knnSize - 1;
+		for (; i > 0 && knn[i - 1] > cell; i--) {
+			knn[i] = knn[i - 1];
+		}
+		knn[i] = cell;
+	}
+
+	// lower bound on the squared distance to any cell in the shell of superblocks s away from the start on some axis
+	private int shellBound(final int sr, final int sg, final int sb, final int s) {
+		return Math.min(Math.min(axisShellBound(rSuper, sr, s), axisShellBound(gSuper, sg, s)), axisShellBound(bSuper, sb, s));
+	}
+
+	private int axisShellBound(final int[] bounds, final int start, final int s) {
+		int bound = Integer.MAX_VALUE;
+		if (start + s < supers) {
+			bound = bounds[start + s];
+		}
+		if (start - s >= 0) {
+			bound = Math.min(bound, bounds[start - s]);
+		}
+		return bound;
+	}
+
+	// fills the weighted squared distances from a channel value to the level range of each block and superblock on an
+	// axis
+	private void axisBounds(final int t, final int weight, final int[] block, final int[] superblock) {
+		for (int i = 0; i < blocks; i++) {
+			final int d = axisDist(i << BLOCK_BITS, 1 << BLOCK_BITS, t);
+			block[i] = weight * d * d;
+		}
+		for (int i = 0; i < supers; i++) {
+			final int d = axisDist(i << SUPER_BITS, 1 << SUPER_BITS, t);
+			superblock[i] = weight * d * d;
+		}
+	}
+
+	private int axisDist(final int first, final int size, final int t) {
+		final int l = levels[first];
+		final int h = levels[lastLevel(first, size)];
+		return t < l ? l - t : t > h ? t - h : 0;
+	}
+
+	private int lastLevel(final int first, final int size) {
+		return Math.min(first + size, levels.length) - 1;
+	}
+
+	// index of the level closest to a channel value
+	private int nearestLevel(final int c) {
+		int l = 0;
+		int h = levels.length - 1;
+		while (l < h) {
+			final int m = l + h >>> 1;
+			if (levels[m] < c) {
+				l = m + 1;
+			} else {
+				h = m;
+			}
+		}
+		if (l > 0 && c - levels[l - 1] < levels[l] - c) {
+			l--;
+		}
+		return l;
+	}
+
+	// index of the level equal to a channel value, or -1 if the value is not a level
+	private int levelOf(final int c) {
+		final int l = nearestLevel(c);
+		return levels[l] == c ? l : -1;
+	}
+
+	private int block(final int r, final int g, final int b) {
+		return ((r >> BLOCK_BITS) * blocks + (g >> BLOCK_BITS)) * blocks + (b >> BLOCK_BITS);
+	}
+
+	private static int bit(final int r, final int g, final int b) {
+		return (r & BLOCK_MASK) << 2 * BLOCK_BITS | (g & BLOCK_MASK) << BLOCK_BITS | b & BLOCK_MASK;
+	}
+
+	private int superblock(final int r, final int g, final int b) {
+		return ((r >> SUPER_BITS) * supers + (g >> SUPER_BITS)) * supers + (b >> SUPER_BITS);
+	}
+}
@@ -0,0 +1,60 @@
+package palette;
+
+/**
+ * Colour distances a palette index can minimise. Each is a squared euclidean distance with an integer weight per
+ * channel, which is the same as plain euclidean distance after scaling each channel by the square root of its weight.
+ * The indexes apply the weights to their distance and bound computations instead of scaling the colours they hold, so
+ * they prune as tightly and exactly as they do for plain distance.
+ */
+public enum Metric {
+	/**
+	 * Plain distance in RGB.
+	 */
+	EUCLIDEAN(1, 1, 1),
+	/**
+	 * Channels weighted by their share of luma, 0.299, 0.587 and 0.114 in Rec. 601, as 3:6:1. Errors in green show
+	 * most and errors in blue least.
+	 */
+	LUMA(3, 6, 1),
+	/**
+	 * The "redmean" approximation of perceived difference, (2 + r/256) dR^2 + 4 dG^2 + (3 - r/256) dB^2 for mean red
+	 * r, with r fixed at the middle of the range so that the weights do not depend on the colours: 5:8:5.
+	 */
+	REDMEAN(5, 8, 5);
+
+	private final int red;
+	private final int green;
+	private final int blue;
+
+	private Metric(final int red, final int green, final int blue) {
+		this.red = red;
+		this.green = green;
+		this.blue = blue;
+	}
+
+	public int red() {
+		return red;
+	}
+
+	public int green() {
+		return green;
+	}
+
+	public int blue() {
+		return blue;
+	}
+
+	/**
+	 * @param a
+	 *            packed colour
+	 * @param b
+	 *            packed colour
+	 * @return the weighted squared distance between the colours
+	 */
+	public int distance(final int a, final int b) {
+		final int dr = (a >> 16 & 0xFF) - (b >> 16 & 0xFF);
+		final int dg = (a >> 8 & 0xFF) - (b >> 8 & 0xFF);
+		final int db = (a & 0xFF) - (b & 0xFF);
+		return red * dr * dr + green * dg * dg + blue * db * db;
+	}
+}
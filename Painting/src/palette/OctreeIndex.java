@@ -0,0 +1,543 @@
+package palette;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * OctreeIndex holds any set of colours in an octree over the RGB cube: each level halves every channel, so a node has
+ * up to eight children, one per octant. The tree is complete and implicit, nodes being numbered by the Morton code of
+ * their corner, which makes its size independent of the palette: the inner nodes down to cubes of 8x8x8 colours keep
+ * their count of free colours and a mask of their children that still hold any, and the leaves are cubes of 4x4x4
+ * colours kept as one <TT>long</TT> with a bit per free colour.
+ *
+ * Nearest free colour queries are best-first: cubes wait in a heap ordered by their distance from the target and are
+ * opened nearest first, so the search ends as soon as the nearest cube left is further than the best colour so far.
+ * Using a colour clears its bit, and a child that empties is taken out of its parent's mask at once, so emptied
+ * branches are never looked at again and the cost of a query does not grow as the palette drains.
+ */
+public class OctreeIndex implements ColorIndex {
+
+	/**
+	 * First int of index files written by {@link #save(Path)}.
+	 */
+	public static final int MAGIC = 0x4F435452;
+
+	private static final int VERSION = 1;
+
+	// levels of inner nodes; leaves sit below them, LEAF_BITS bits of each channel further down
+	private static final int DEPTH = 6;
+	private static final int LEAF_BITS = 2;
+	private static final int LEAVES = 1 << 3 * DEPTH;
+
+	// first inner node of each level: level d holds 8^d nodes
+	private static final int[] LEVEL = new int[DEPTH + 1];
+
+	// spreads the 6 bits of a leaf coordinate to every third bit of a Morton code
+	private static final int[] SPREAD = new int[1 << DEPTH];
+
+	// bits of a leaf whose colours have each value of the red, green and blue offsets within the leaf
+	private static final long[] RED = new long[1 << LEAF_BITS];
+	private static final long[] GREEN = new long[1 << LEAF_BITS];
+	private static final long[] BLUE = new long[1 << LEAF_BITS];
+
+	static {
+		for (int d = 1; d <= DEPTH; d++) {
+			LEVEL[d] = LEVEL[d - 1] + (1 << 3 * (d - 1));
+		}
+		for (int c = 0; c < SPREAD.length; c++) {
+			for (int bit = 0; bit < DEPTH; bit++) {
+				SPREAD[c] |= (c >>> bit & 1) << 3 * bit;
+			}
+		}
+		for (int bit = 0; bit < 64; bit++) {
+			RED[bit >>> 4] |= 1L << bit;
+			GREEN[bit >>> 2 & 3] |= 1L << bit;
+			BLUE[bit & 3] |= 1L << bit;
+		}
+	}
+
+	// pruning bounds are scaled by 1 / (1 + epsilon)^2 in fixed point with SHIFT fraction bits, rounding up so
+	// that nothing is pruned that could beat the best by more than epsilon. EXACT means no scaling.
+	private static final int SHIFT = 16;
+	private static final int EXACT = 1 << SHIFT;
+
+	// heap entries pack the squared distance to a cube above its level and its Morton code, leaving the distance over
+	// 40 bits however the metric weights it
+	private static final int CODE_BITS = 3 * DEPTH;
+	private static final int LEVEL_BITS = 3;
+
+	// free colours of each inner node, the octants of its children holding any, and per channel bounds of the free
+	// colours as packed colours; indexed LEVEL[d] + code. Searches measure distances to the bounds rather than to the
+	// whole cube, which matters once a cube is partly drained.
+	private final int[] counts;
+	private final byte[] masks;
+	private final int[] lo;
+	private final int[] hi;
+
+	// free colours of each leaf, one bit per colour, indexed by Morton code
+	private final long[] leaves;
+
+	// cubes to open, nearest first
+	private long[] heap = new long[64];
+	private int heapSize;
+
+	// search results so far, nearest first: squared distance in the high word, packed colour in the low word
+	private long[] knn = new long[1];
+	private int knnSize;
+	private int knnCount;
+
+	// pruning bound scale of destructive searches, see setEpsilon(), and of the current search
+	private int shrink = EXACT;
+	private int searchShrink;
+
+	// channel weights of the distance searches minimise, see setMetric()
+	private Metric metric = Metric.EUCLIDEAN;
+
+	/**
+	 * Creates an index with every given colour free.
+	 *
+	 * @param colors
+	 *            packed colours; duplicates are dropped and alpha bytes ignored
+	 */
+	public OctreeIndex(final int[] colors) {
+		this(new long[LEAVES]);
+		for (final int c : colors) {
+			leaves[leaf(c)] |= 1L << bit(c);
+		}
+		count();
+	}
+
+	private OctreeIndex(final long[] leaves) {
+		this.leaves = leaves;
+		counts = new int[LEVEL[DEPTH]];
+		masks = new byte[LEVEL[DEPTH]];
+		lo = new int[LEVEL[DEPTH]];
+		hi = new int[LEVEL[DEPTH]];
+	}
+
+	// fork of another index
+	private OctreeIndex(final OctreeIndex from) {
+		leaves = from.leaves.clone();
+		counts = from.counts.clone();
+		masks = from.masks.clone();
+		lo = from.lo.clone();
+		hi = from.hi.clone();
+		shrink = from.shrink;
+		metric = from.metric;
+	}
+
+	/**
+	 * Returns an index with its own copy of the counts, masks, bounds and leaves, which are all it stores and never more than a
+	 * few megabytes.
+	 */
+	@Override
+	public OctreeIndex fork() {
+		return new OctreeIndex(this);
+	}
+
+	/**
+	 * Builds an octree of other colours with this one's epsilon and metric.
+	 */
+	@Override
+	public OctreeIndex rebuild(final int[] colors) {
+		final OctreeIndex index = new OctreeIndex(colors);
+		index.shrink = shrink;
+		index.metric = metric;
+		return index;
+	}
+
+	@Override
+	public int nearestAndRemove(final int rgb) {
+		if (search(rgb, 1, shrink) == 0) {
+			return NONE;
+		}
+		final int c = (int) knn[0];
+		remove(c);
+		return c;
+	}
+
+	@Override
+	public int nearest(final int rgb) {
+		return search(rgb, 1, EXACT) == 0 ? NONE : (int) knn[0];
+	}
+
+	/**
+	 * Finds the <I>n</I> free colours nearest to a colour in one best-first search and marks them used.
+	 */
+	@Override
+	public int nearestAndRemove(final int rgb, final int n, final int[] out) {
+		final int found = search(rgb, n, shrink);
+		for (int i = 0; i < found; i++) {
+			out[i] = (int) knn[i];
+			remove(out[i]);
+		}
+		return found;
+	}
+
+	@Override
+	public boolean remove(final int rgb) {
+		final int code = leaf(rgb);
+		final long bit = 1L << bit(rgb);
+		if ((leaves[code] & bit) == 0) {
+			return false;
+		}
+		leaves[code] &= ~bit;
+
+		// uncount the colour all the way up, and drop each child that empties from its parent's mask
+		boolean emptied = leaves[code] == 0;
+		for (int d = DEPTH - 1, child = code; d >= 0; d--, child >>>= 3) {
+			final int node = LEVEL[d] + (child >>> 3);
+			if (emptied) {
+				masks[node] &= ~(1 << (child & 7));
+			}
+			emptied = --counts[node] == 0;
+		}
+
+		// refit the bounds bottom up until one does not change, as then none above it can
+		for (int d = DEPTH - 1, node = code >>> 3; d >= 0 && counts[LEVEL[d] + node] > 0; d--, node >>>= 3) {
+			if (!fit(d, node)) {
+				break;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return counts[0];
+	}
+
+	@Override
+	public int[] toArray() {
+		final int[] colors = new int[size()];
+		int n = 0;
+		for (int code = 0; code < LEAVES; code++) {
+			final int corner = corner(code, DEPTH);
+			for (long word = leaves[code]; word != 0; word &= word - 1) {
+				colors[n++] = corner + offset(Long.numberOfTrailingZeros(word));
+			}
+		}
+		return colors;
+	}
+
+	/**
+	 * Lets {@link #nearestAndRemove(int)} settle for a colour up to <TT>1 + epsilon</TT> times as far as the nearest, by
+	 * ending the search once the nearest cube left cannot beat the best so far by more than that.
+	 * {@link #nearest(int)} stays exact.
+	 */
+	@Override
+	public void setEpsilon(final double epsilon) {
+		if (!(epsilon >= 0)) {
+			throw new IllegalArgumentException("epsilon must be non-negative: " + epsilon);
+		}
+		shrink = (int) Math.ceil(EXACT / ((1 + epsilon) * (1 + epsilon)));
+	}
+
+	/**
+	 * Weights the channels in every distance and bound the searches work out, so pruning stays exact.
+	 */
+	@Override
+	public void setMetric(final Metric metric) {
+		this.metric = metric;
+	}
+
+	@Override
+	public int distance(final int a, final int b) {
+		return metric.distance(a, b);
+	}
+
+	/**
+	 * Writes the free colours to a file for {@link #load(Path)} to read back. Only the leaves are written, as the
+	 * counts and masks are quickly worked out again from them.
+	 *
+	 * @param file
+	 *            file to write, replaced if it exists
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void save(final Path file) throws IOException {
+		final ByteBuffer out = ByteBuffer.allocate(8 + 8 * LEAVES).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(MAGIC).putInt(VERSION);
+		out.asLongBuffer().put(leaves);
+		out.rewind();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE)) {
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+		}
+	}
+
+	/**
+	 * Reads an index written by {@link #save(Path)}.
+	 *
+	 * @param file
+	 *            file to read
+	 * @return the index, with the colours free that were free when it was saved and epsilon 0
+	 * @throws IOException
+	 *             if the file cannot be read or is not an octree index file
+	 */
+	public static OctreeIndex load(final Path file) throws IOException {
+		final ByteBuffer in;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if (in.remaining() != 8 + 8 * LEAVES || in.getInt() != MAGIC || in.getInt() != VERSION) {
+			throw new IOException("Not an octree index file of this version: " + file);
+		}
+		final OctreeIndex index = new OctreeIndex(new long[LEAVES]);
+		in.asLongBuffer().get(index.leaves);
+		index.count();
+		return index;
+	}
+
+	// works out the counts and masks of the inner nodes from the leaves, bottom up
+	private void count() {
+		for (int code = 0; code < LEAVES; code++) {
+			final int n = Long.bitCount(leaves[code]);
+			if (n > 0) {
+				final int parent = LEVEL[DEPTH - 1] + (code >>> 3);
+				counts[parent] += n;
+				masks[parent] |= 1 << (code & 7);
+			}
+		}
+		for (int d = DEPTH - 1; d > 0; d--) {
+			for (int code = 0; code < 1 << 3 * d; code++) {
+				final int n = counts[LEVEL[d] + code];
+				if (n > 0) {
+					final int parent = LEVEL[d - 1] + (code >>> 3);
+					counts[parent] += n;
+					masks[parent] |= 1 << (code & 7);
+				}
+			}
+		}
+		for (int d = DEPTH - 1; d >= 0; d--) {
+			for (int code = 0; code < 1 << 3 * d; code++) {
+				if (counts[LEVEL[d] + code] > 0) {
+					fit(d, code);
+				}
+			}
+		}
+	}
+
+	// works out the bounds of a non-empty inner node from its children and returns whether they changed
+	private boolean fit(final int d, final int code) {
+		int l = 0xFFFFFF;
+		int h = 0;
+		for (int mask = masks[LEVEL[d] + code] & 0xFF; mask != 0; mask &= mask - 1) {
+			final int child = code << 3 | Integer.numberOfTrailingZeros(mask);
+			if (d + 1 == DEPTH) {
+				final long word = leaves[child];
+				final int corner = corner(child, DEPTH);
+				l = min(l, corner + (low(word, RED) << 16 | low(word, GREEN) << 8 | low(word, BLUE)));
+				h = max(h, corner + (high(word, RED) << 16 | high(word, GREEN) << 8 | high(word, BLUE)));
+			} else {
+				l = min(l, lo[LEVEL[d + 1] + child]);
+				h = max(h, hi[LEVEL[d + 1] + child]);
+			}
+		}
+		final int node = LEVEL[d] + code;
+		if (lo[node] == l && hi[node] == h) {
+			return false;
+		}
+		lo[node] = l;
+		hi[node] = h;
+		return true;
+	}
+
+	// lowest and highest offset within a non-empty leaf on the axis whose bits per offset are given
+	private static int low(final long word, final long[] axis) {
+		int v = 0;
+		while ((word & axis[v]) == 0) {
+			v++;
+		}
+		return v;
+	}
+
+	private static int high(final long word, final long[] axis) {
+		int v = axis.length - 1;
+		while ((word & axis[v]) == 0) {
+			v--;
+		}
+		return v;
+	}
+
+	// fills knn with the n free colours nearest to a colour and returns how many there are
+	private int search(final int rgb, final int n, final int shrink) {
+		if (knn.length < n) {
+			knn = new long[n];
+		}
+		knnSize = n;
+		knnCount = 0;
+		searchShrink = shrink;
+		if (size() == 0) {
+			return 0;
+		}
+
+		final int tr = rgb >>> 16 & 0xFF;
+		final int tg = rgb >>> 8 & 0xFF;
+		final int tb = rgb & 0xFF;
+		heapSize = 0;
+		push(0);
+		while (heapSize > 0) {
+			final long cube = pop();
+			if (cube >>> LEVEL_BITS + CODE_BITS >= limit()) {
+				break;
+			}
+			final int d = (int) (cube >>> CODE_BITS) & (1 << LEVEL_BITS) - 1;
+			final int code = (int) cube & (1 << CODE_BITS) - 1;
+			if (d == DEPTH) {
+				scanLeaf(code, tr, tg, tb);
+			} else {
+				open(d, code, tr, tg, tb);
+			}
+		}
+		return knnCount;
+	}
+
+	// queues the children of an inner node that might hold a closer colour, or scans them if they are leaves
+	private void open(final int d, final int code, final int tr, final int tg, final int tb) {
+		final int first = code << 3;
+		for (int mask = masks[LEVEL[d] + code] & 0xFF; mask != 0; mask &= mask - 1) {
+			final int child = first | Integer.numberOfTrailingZeros(mask);
+			if (d + 1 == DEPTH) {
+				final int corner = corner(child, DEPTH);
+				if (dist(tr, tg, tb, corner, corner + 0x030303) < limit()) {
+					scanLeaf(child, tr, tg, tb);
+				}
+			} else {
+				final int node = LEVEL[d + 1] + child;
+				final long dist = dist(tr, tg, tb, lo[node], hi[node]);
+				if (dist < limit()) {
+					push(dist << LEVEL_BITS + CODE_BITS | (long) (d + 1) << CODE_BITS | child);
+				}
+			}
+		}
+	}
+
+	private void scanLeaf(final int code, final int tr, final int tg, final int tb) {
+		final int corner = corner(code, DEPTH);
+		for (long word = leaves[code]; word != 0; word &= word - 1) {
+			final int c = corner + offset(Long.numberOfTrailingZeros(word));
+			final int dr = (c >>> 16) - tr;
+			final int dg = (c >>> 8 & 0xFF) - tg;
+			final int db = (c & 0xFF) - tb;
+			final long d = metric.red() * dr * dr + metric.green() * dg * dg + metric.blue() * db * db;
+			if (d < bound()) {
+				offer(d << 32 | c);
+			}
+		}
+	}
+
+	// weighted squared distance from a colour to the box between two packed colours
+	private long dist(final int tr, final int tg, final int tb, final int lo, final int hi) {
+		return metric.red() * axisDist(tr, lo >>> 16, hi >>> 16)
+				+ metric.green() * axisDist(tg, lo >>> 8 & 0xFF, hi >>> 8 & 0xFF)
+				+ metric.blue() * axisDist(tb, lo & 0xFF, hi & 0xFF);
+	}
+
+	private static long axisDist(final int t, final int lo, final int hi) {
+		final int d = t < lo ? lo - t : t > hi ? t - hi : 0;
+		return d * d;
+	}
+
+	// squared distance beyond which nothing can improve the search
+	private long bound() {
+		return knnCount < knnSize ? Long.MAX_VALUE : knn[knnSize - 1] >>> 32;
+	}
+
+	// squared distance a cube must come closer than to be opened
+	private long limit() {
+		return knnCount < knnSize ? Long.MAX_VALUE : (knn[knnSize - 1] >>> 32) * searchShrink + EXACT - 1 >>> SHIFT;
+	}
+
+	// inserts into the sorted list of the best colours so far, dropping the worst if it is full
+	private void offer(final long color) {
+		int i = knnCount < knnSize ? knnCount++ : knnSize - 1;
+		for (; i > 0 && knn[i - 1] > color; i--) {
+			knn[i] = knn[i - 1];
+		}
+		knn[i] = color;
+	}
+
+	private void push(final long cube) {
+		if (heapSize == heap.length) {
+			heap = Arrays.copyOf(heap, heapSize * 2);
+		}
+		int i = heapSize++;
+		while (i > 0) {
+			final int up = i - 1 >>> 1;
+			if (heap[up] <= cube) {
+				break;
+			}
+			heap[i] = heap[up];
+			i = up;
+		}
+		heap[i] = cube;
+	}
+
+	private long pop() {
+		final long top = heap[0];
+		final long last = heap[--heapSize];
+		int i = 0;
+		final int half = heapSize >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+				child++;
+			}
+			if (last <= heap[child]) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = last;
+		return top;
+	}
+
+	// Morton code of the leaf holding a colour
+	private static int leaf(final int rgb) {
+		return SPREAD[rgb >>> 16 + LEAF_BITS & 0x3F] << 2 | SPREAD[rgb >>> 8 + LEAF_BITS & 0x3F] << 1
+				| SPREAD[rgb >>> LEAF_BITS & 0x3F];
+	}
+
+	// bit of a colour within its leaf
+	private static int bit(final int rgb) {
+		return (rgb >>> 16 & 3) << 4 | (rgb >>> 8 & 3) << 2 | rgb & 3;
+	}
+
+	// packed colour of a bit's position within its leaf, relative to the leaf's corner
+	private static int offset(final int bit) {
+		return (bit >>> 4) << 16 | (bit >>> 2 & 3) << 8 | bit & 3;
+	}
+
+	// packed colour of the lowest corner of the cube with a Morton code at a level
+	private static int corner(final int code, final int d) {
+		int r = 0;
+		int g = 0;
+		int b = 0;
+		for (int i = 0; i < d; i++) {
+			r |= (code >>> 3 * i + 2 & 1) << i;
+			g |= (code >>> 3 * i + 1 & 1) << i;
+			b |= (code >>> 3 * i & 1) << i;
+		}
+		final int shift = 8 - d;
+		return r << shift + 16 | g << shift + 8 | b << shift;
+	}
+
+	// per channel minimum of two packed colours
+	private static int min(final int a, final int b) {
+		return Math.min(a & 0xFF0000, b & 0xFF0000) | Math.min(a & 0xFF00, b & 0xFF00) | Math.min(a & 0xFF, b & 0xFF);
+	}
+
+	// per channel maximum of two packed colours
+	private static int max(final int a, final int b) {
+		return Math.max(a & 0xFF0000, b & 0xFF0000) | Math.max(a & 0xFF00, b & 0xFF00) | Math.max(a & 0xFF, b & 0xFF);
+	}
+}
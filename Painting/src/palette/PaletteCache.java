@@ -0,0 +1,269 @@
+package palette;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import kdtree.BucketTree;
+import kdtree.RGBTree;
+
+/**
+ * Keeps built palette indexes so that a palette is built once and then reused. Recently used palettes stay in memory
+ * as untouched snapshots, least recently used first out once they hold more colours than the cache allows, and lattice
+ * palettes are also kept in files in a directory under names derived from the backend and the lattice. Custom palettes
+ * can be saved to and loaded from any file with {@link #save(ColorIndex, Path)} and {@link #load(Path)}.
+ *
+ * Indexes are drained by the runs that use them, so every call returns a {@link ColorIndex#fork() fork} of the
+ * snapshot, and runs of the same palette share one copy of whatever the index never changes. All methods may be
+ * called from any thread. A palette is read or built by the first thread to ask for it while the others that want it
+ * wait; threads that want other palettes never wait on it.
+ */
+public class PaletteCache {
+
+	private final Path directory;
+
+	// most colours the snapshots in memory may hold together; the newest is kept even if it alone holds more
+	private final long maxColors;
+
+	// snapshots by palette, least recently used first
+	private final LinkedHashMap<String, ColorIndex> snapshots = new LinkedHashMap<String, ColorIndex>(16, 0.75f, true);
+	private long colors;
+
+	// palettes being read or built, by name. These and the snapshots are only touched under the cache's monitor, which
+	// is never held while reading, building or forking.
+	private final Map<String, FutureTask<ColorIndex>> loading = new HashMap<>();
+
+	/**
+	 * @param directory
+	 *            where lattice palettes are cached; created when the first one is saved
+	 * @param maxColors
+	 *            most colours to keep in memory, summed over the cached palettes
+	 */
+	public PaletteCache(final Path directory, final long maxColors) {
+		this.directory = directory;
+		this.maxColors = maxColors;
+	}
+
+	/**
+	 * Returns an index of every colour of a lattice. It is forked from the snapshot in memory if there is one, and
+	 * otherwise read from the cache directory, or built and saved there. Backends that build quickly are always built. A
+	 * cache file that cannot be read is rebuilt.
+	 *
+	 * @param backend
+	 *            structure to index the palette with
+	 * @param levels
+	 *            channel values of the lattice, as from {@link LatticeIndex#levels(int)}
+	 * @return the index, with every colour free
+	 */
+	public ColorIndex lattice(final Backend backend, final int[] levels) {
+		final String name = String.format("%s-%d-%08x", backend.name().toLowerCase(), levels.length, Arrays.hashCode(levels));
+		try {
+			return snapshot(name, () -> readOrBuild(backend, levels, directory.resolve(name + ".pal"))).fork();
+		} catch (final IOException e) {
+			// readOrBuild throws none
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns an index of a custom palette saved by {@link #save(ColorIndex, Path)}, forked from the snapshot in memory
+	 * if the file has not changed since it was read.
+	 *
+	 * @param file
+	 *            file to read
+	 * @return the index, in the state it was saved in
+	 * @throws IOException
+	 *             if the file cannot be read or is not an index file
+	 */
+	public ColorIndex custom(final Path file) throws IOException {
+		final String name = file.toAbsolutePath() + "@" + Files.getLastModifiedTime(file).toMillis();
+		return snapshot(name, () -> load(file)).fork();
+	}
+
+	/*
+	 * Returns the snapshot of a palette, reading or building it with source unless it is in memory. If another thread
+	 * is already reading or building it, waits for that thread's snapshot instead. Snapshots are never changed, so the
+	 * callers may fork them at the same time.
+	 */
+	private ColorIndex snapshot(final String name, final Callable<ColorIndex> source) throws IOException {
+		final FutureTask<ColorIndex> task;
+		final boolean mine;
+		synchronized (this) {
+			final ColorIndex snapshot = snapshots.get(name);
+			if (snapshot != null) {
+				return snapshot;
+			}
+			final FutureTask<ColorIndex> running = loading.get(name);
+			mine = running == null;
+			task = mine ? new FutureTask<>(source) : running;
+			if (mine) {
+				loading.put(name, task);
+			}
+		}
+
+		if (!mine) {
+			return await(task);
+		}
+		task.run();
+		ColorIndex snapshot = null;
+		try {
+			snapshot = await(task);
+			return snapshot;
+		} finally {
+			synchronized (this) {
+				loading.remove(name);
+				// a palette that could not be read is not remembered, so the next call tries again
+				if (snapshot != null) {
+					remember(name, snapshot);
+				}
+			}
+		}
+	}
+
+	// result of a task that has run or is running on a thread nobody interrupts, so it is waited for whatever happens
+	private static ColorIndex await(final FutureTask<ColorIndex> task) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// adds a snapshot, dropping the least recently used ones while there are too many colours; under the monitor
+	private void remember(final String name, final ColorIndex snapshot) {
+		snapshots.put(name, snapshot);
+		colors += snapshot.size();
+		final Iterator<Map.Entry<String, ColorIndex>> eldest = snapshots.entrySet().iterator();
+		while (colors > maxColors && snapshots.size() > 1) {
+			colors -= eldest.next().getValue().size();
+			eldest.remove();
+		}
+	}
+
+	private ColorIndex readOrBuild(final Backend backend, final int[] levels, final Path file) {
+		if (backend == Backend.LATTICE || backend == Backend.OCTREE) {
+			return backend.build(levels);
+		}
+
+		if (Files.isRegularFile(file)) {
+			try {
+				return load(file);
+			} catch (final IOException e) {
+				System.out.println("Rebuilding unreadable palette " + file + ": " + e.getMessage());
+			}
+		}
+
+		final ColorIndex index = backend.build(levels);
+		try {
+			Files.createDirectories(directory);
+			// written aside and moved into place, so a crash never leaves a partial file under the real name
+			final Path temp = Files.createTempFile(directory, "palette", ".tmp");
+			save(index, temp);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			System.out.println("Could not cache palette " + file + ": " + e.getMessage());
+		}
+		return index;
+	}
+
+	/**
+	 * Reads an index saved by {@link #save(ColorIndex, Path)}, whatever its backend.
+	 *
+	 * @param file
+	 *            file to read
+	 * @return the index, in the state it was saved in
+	 * @throws IOException
+	 *             if the file cannot be read or is not an index file
+	 */
+	public static ColorIndex load(final Path file) throws IOException {
+		switch (magic(file)) {
+		case RGBTree.MAGIC:
+			return RGBTree.load(file);
+		case BucketTree.MAGIC:
+			return BucketTree.load(file);
+		case OctreeIndex.MAGIC:
+			return OctreeIndex.load(file);
+		default:
+			throw new IOException("Not an index file: " + file);
+		}
+	}
+
+	/**
+	 * @param file
+	 *            any file
+	 * @return whether the file starts like an index file written by {@link #save(ColorIndex, Path)}
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static boolean isIndexFile(final Path file) throws IOException {
+		final int magic = magic(file);
+		return magic == RGBTree.MAGIC || magic == BucketTree.MAGIC || magic == OctreeIndex.MAGIC;
+	}
+
+	/**
+	 * Writes an index to a file for {@link #load(Path)} to read back.
+	 *
+	 * @param index
+	 *            index built by a backend that can be saved
+	 * @param file
+	 *            file to write, replaced if it exists
+	 * @throws IOException
+	 *             if the file cannot be written
+	 * @throws IllegalArgumentException
+	 *             if the index cannot be saved
+	 */
+	public static void save(final ColorIndex index, final Path file) throws IOException {
+		if (index instanceof RGBTree) {
+			((RGBTree) index).save(file);
+		} else if (index instanceof BucketTree) {
+			((BucketTree) index).save(file);
+		} else if (index instanceof OctreeIndex) {
+			((OctreeIndex) index).save(file);
+		} else {
+			throw new IllegalArgumentException("Cannot save a " + index.getClass().getSimpleName());
+		}
+	}
+
+	// first int of a file as index files store it, or 0 if the file is shorter
+	private static int magic(final Path file) throws IOException {
+		final ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (magic.hasRemaining() && channel.read(magic) >= 0) {
+				// keep reading
+			}
+		}
+		return magic.hasRemaining() ? 0 : magic.getInt(0);
+	}
+}
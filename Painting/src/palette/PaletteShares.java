@@ -0,0 +1,199 @@
+package palette;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Splits a palette into disjoint shares, one per region of an image, so that the regions can be filled in parallel and
+ * still never use a colour twice. Each region gets the palette colours near the colours it will be matched against.
+ *
+ * Colours are counted in a histogram of 32x32x32 cells. The palette colours of each cell are shared among the regions
+ * in proportion to how many of their targets fall in the cell, up to that many. Cells short of colours then take what
+ * they still need from the free colours of the cells around them, in shells of growing distance like a nearest colour
+ * search would, so every target is met with colours about as near as any left. That meets every target of every region
+ * as long as the palette has as many colours as there are targets. The same is done once more to give every region
+ * as many spare colours again, so that its fill has some choice, and colours nobody is near are left out.
+ */
+public final class PaletteShares {
+
+	// bits per channel of the histogram cells, cells per axis, and the number of cells
+	private static final int BITS = 5;
+	private static final int SIDE = 1 << BITS;
+	private static final int CELLS = 1 << 3 * BITS;
+
+	// the palette colours sorted by cell; those of a cell before its cursor are taken
+	private final int[] colors;
+	private final int[] start;
+	private final int[] cursor;
+	private final int[] owner;
+	private int free;
+
+	// the regions with targets in each cell: those of cell c are entries demand[c] to demand[c + 1] - 1, with the
+	// region of each entry, how many of its targets are in the cell and how many colours it still needs there
+	private final int[] demand;
+	private final int[] region;
+	private final int[] wanted;
+	private final int[] needed;
+
+	private PaletteShares(final int[] palette, final int[][] targets) {
+		start = new int[CELLS + 1];
+		for (final int c : palette) {
+			start[cell(c) + 1]++;
+		}
+		for (int i = 0; i < CELLS; i++) {
+			start[i + 1] += start[i];
+		}
+		colors = new int[palette.length];
+		cursor = Arrays.copyOf(start, CELLS);
+		for (final int c : palette) {
+			colors[cursor[cell(c)]++] = c;
+		}
+		System.arraycopy(start, 0, cursor, 0, CELLS);
+		owner = new int[palette.length];
+		Arrays.fill(owner, -1);
+		free = palette.length;
+
+		// the cells of each region's targets, sorted so that equal cells form runs
+		final int[][] cells = new int[targets.length][];
+		IntStream.range(0, targets.length).parallel().forEach(r -> {
+			cells[r] = new int[targets[r].length];
+			for (int i = 0; i < cells[r].length; i++) {
+				cells[r][i] = cell(targets[r][i]);
+			}
+			Arrays.sort(cells[r]);
+		});
+		demand = new int[CELLS + 1];
+		for (final int[] c : cells) {
+			for (int i = 0; i < c.length; i++) {
+				if (i == 0 || c[i] != c[i - 1]) {
+					demand[c[i] + 1]++;
+				}
+			}
+		}
+		for (int i = 0; i < CELLS; i++) {
+			demand[i + 1] += demand[i];
+		}
+		region = new int[demand[CELLS]];
+		wanted = new int[demand[CELLS]];
+		final int[] next = Arrays.copyOf(demand, CELLS);
+		for (int r = 0; r < cells.length; r++) {
+			final int[] c = cells[r];
+			for (int i = 0; i < c.length; i++) {
+				if (i == 0 || c[i] != c[i - 1]) {
+					region[next[c[i]]++] = r;
+				}
+				wanted[next[c[i]] - 1]++;
+			}
+		}
+		needed = new int[wanted.length];
+	}
+
+	/**
+	 * Splits a palette among regions.
+	 *
+	 * @param palette
+	 *            packed colours, without duplicates
+	 * @param targets
+	 *            packed colours each region will be matched against; only how many fall near each colour matters
+	 * @return the colours of each region, which never share a colour; together they hold all of the palette but the
+	 *         colours far from every target
+	 */
+	public static int[][] split(final int[] palette, final int[][] targets) {
+		final PaletteShares shares = new PaletteShares(palette, targets);
+		// first a colour for every target, then a spare one
+		shares.meet();
+		shares.meet();
+		return shares.shares(targets.length);
+	}
+
+	// hands every entry as many colours as its targets, from the nearest shells of cells that have any free
+	private void meet() {
+		System.arraycopy(wanted, 0, needed, 0, wanted.length);
+		int[] open = IntStream.range(0, CELLS).filter(c -> demand[c + 1] > demand[c]).toArray();
+		for (int shell = 0; shell < SIDE && open.length > 0 && free > 0; shell++) {
+			int left = 0;
+			for (final int c : open) {
+				if (take(c, shell)) {
+					open[left++] = c;
+				}
+			}
+			open = Arrays.copyOf(open, left);
+		}
+	}
+
+	// hands a cell's entries colours from the cells on a shell around it, returning true if they still need more
+	private boolean take(final int cell, final int shell) {
+		final int cr = cell >> 2 * BITS;
+		final int cg = cell >> BITS & SIDE - 1;
+		final int cb = cell & SIDE - 1;
+		final int rMax = Math.min(cr + shell, SIDE - 1);
+		final int gMax = Math.min(cg + shell, SIDE - 1);
+		for (int r = Math.max(cr - shell, 0); r <= rMax; r++) {
+			final boolean rEdge = r == cr - shell || r == cr + shell;
+			for (int g = Math.max(cg - shell, 0); g <= gMax; g++) {
+				// away from the edges of the shell, only its two faces across blue are on it
+				final int step = rEdge || g == cg - shell || g == cg + shell ? 1 : Math.max(2 * shell, 1);
+				for (int b = cb - shell; b <= cb + shell; b += step) {
+					if (b >= 0 && b < SIDE && !takeFrom(cell, r << 2 * BITS | g << BITS | b)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Hands a cell's entries, which still need colours, free colours of another cell in proportion to what they need,
+	 * returning true if they still need more. Entry e gets the colours between floor(taken * before(e) / total) and
+	 * floor(taken * before(e + 1) / total) for the sums of the needs before each entry, which add up exactly and never
+	 * exceed its need.
+	 */
+	private boolean takeFrom(final int cell, final int from) {
+		final int available = start[from + 1] - cursor[from];
+		if (available == 0) {
+			return true;
+		}
+		long total = 0;
+		for (int e = demand[cell]; e < demand[cell + 1]; e++) {
+			total += needed[e];
+		}
+		final long taken = Math.min(available, total);
+		long before = 0;
+		for (int e = demand[cell]; e < demand[cell + 1]; e++) {
+			final int n = (int) (taken * (before + needed[e]) / total - taken * before / total);
+			before += needed[e];
+			needed[e] -= n;
+			for (int k = 0; k < n; k++) {
+				owner[cursor[from]++] = region[e];
+			}
+		}
+		free -= taken;
+		return taken < total;
+	}
+
+	private int[][] shares(final int regions) {
+		final int[] counts = new int[regions];
+		for (final int r : owner) {
+			if (r >= 0) {
+				counts[r]++;
+			}
+		}
+		final int[][] shares = new int[regions][];
+		for (int r = 0; r < regions; r++) {
+			shares[r] = new int[counts[r]];
+		}
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < colors.length; i++) {
+			if (owner[i] >= 0) {
+				shares[owner[i]][counts[owner[i]]++] = colors[i];
+			}
+		}
+		return shares;
+	}
+
+	// cell of a colour: the top BITS bits of each channel
+	private static int cell(final int rgb) {
+		return (rgb >>> 24 - BITS & SIDE - 1) << 2 * BITS | (rgb >>> 16 - BITS & SIDE - 1) << BITS | rgb >>> 8 - BITS & SIDE - 1;
+	}
+}
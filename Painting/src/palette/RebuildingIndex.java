@@ -0,0 +1,276 @@
+package palette;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Wraps an index that slows down as it drains, such as a KD-tree, and rebuilds it on a background thread instead of
+ * in the middle of a fill. Once a set share of the colours the index was built with have been used, a compact index of
+ * the colours still free is built on the common pool from the colours the index was built with and the colours used
+ * so far. Meanwhile the fill keeps searching the old index, which also keeps logging the colours used, and the call
+ * after the build finishes replays the colours used since it started onto the new index and swaps it in. The fill never
+ * waits for a build. The colours the first build starts from are gathered from the index when it starts, so fills
+ * that never rebuild never copy the palette, and {@link #cancel()} drops a build nobody will swap in.
+ *
+ * Like the index it wraps, this is not thread-safe: it must be used from one thread, and the builds never touch the
+ * index in use.
+ */
+public class RebuildingIndex implements ColorIndex {
+
+	// share of the colours of the current index that must be used before it is rebuilt
+	public static final double DEFAULT_REBUILD_SHARE = 0.5;
+
+	// indexes smaller than this are not worth rebuilding
+	private static final int MIN_REBUILD_SIZE = 1 << 12;
+
+	private final double rebuildShare;
+
+	private ColorIndex index;
+
+	// colours the index was built with, never modified, or null until the first build, and how many there are; then the
+	// colours used since, in order
+	private int[] base;
+	private int baseSize;
+	private int[] used = new int[64];
+	private int usedCount;
+
+	// background build, and how many of the used colours it left out
+	private ForkJoinTask<Build> pending;
+	private int pendingUsed;
+
+	// set once the fill is done with this index, from the fill's thread, and read by the build running then
+	private volatile boolean cancelled;
+
+	// settings to carry over to indexes built after they change; NaN and null until set
+	private double epsilon = Double.NaN;
+	private Metric metric;
+
+	/**
+	 * Wraps an index, rebuilding it once half of its colours have been used.
+	 *
+	 * @param index
+	 *            index to wrap, which must support {@link ColorIndex#rebuild(int[])}; only used through this from now on
+	 */
+	public RebuildingIndex(final ColorIndex index) {
+		this(index, DEFAULT_REBUILD_SHARE);
+	}
+
+	/**
+	 * @param index
+	 *            index to wrap, which must support {@link ColorIndex#rebuild(int[])}; only used through this from now on
+	 * @param rebuildShare
+	 *            share of the colours of an index that must be used before it is rebuilt, between 0 and 1
+	 */
+	public RebuildingIndex(final ColorIndex index, final double rebuildShare) {
+		if (!(rebuildShare > 0 && rebuildShare <= 1)) {
+			throw new IllegalArgumentException("rebuild share must be in (0, 1]: " + rebuildShare);
+		}
+		this.index = index;
+		this.rebuildShare = rebuildShare;
+		baseSize = index.size();
+	}
+
+	@Override
+	public int nearestAndRemove(final int rgb) {
+		swapIfBuilt();
+		final int c = index.nearestAndRemove(rgb);
+		if (c != NONE) {
+			log(c);
+		}
+		return c;
+	}
+
+	@Override
+	public int nearestAndRemove(final int rgb, final int n, final int[] out) {
+		swapIfBuilt();
+		final int found = index.nearestAndRemove(rgb, n, out);
+		for (int i = 0; i < found; i++) {
+			log(out[i]);
+		}
+		return found;
+	}
+
+	@Override
+	public int nearest(final int rgb) {
+		return index.nearest(rgb);
+	}
+
+	@Override
+	public boolean remove(final int rgb) {
+		swapIfBuilt();
+		if (!index.remove(rgb)) {
+			return false;
+		}
+		log(rgb & 0xFFFFFF);
+		return true;
+	}
+
+	@Override
+	public void setEpsilon(final double epsilon) {
+		index.setEpsilon(epsilon);
+		this.epsilon = epsilon;
+	}
+
+	@Override
+	public void setMetric(final Metric metric) {
+		index.setMetric(metric);
+		this.metric = metric;
+	}
+
+	@Override
+	public int distance(final int a, final int b) {
+		return index.distance(a, b);
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public int[] toArray() {
+		return index.toArray();
+	}
+
+	/**
+	 * Forks the index in use, leaving any build in progress to this one.
+	 */
+	@Override
+	public RebuildingIndex fork() {
+		final RebuildingIndex fork = new RebuildingIndex(index.fork(), rebuildShare);
+		fork.epsilon = epsilon;
+		fork.metric = metric;
+		return fork;
+	}
+
+	/**
+	 * Rebuilds in the background already, so returns itself.
+	 */
+	@Override
+	public ColorIndex rebuild() {
+		return this;
+	}
+
+	@Override
+	public ColorIndex rebuild(final int[] colors) {
+		final RebuildingIndex rebuilt = new RebuildingIndex(index.rebuild(colors), rebuildShare);
+		rebuilt.epsilon = epsilon;
+		rebuilt.metric = metric;
+		return rebuilt;
+	}
+
+	/**
+	 * @return whether a build is running in the background
+	 */
+	public boolean isRebuilding() {
+		return pending != null;
+	}
+
+	/**
+	 * Gives up the build in progress and starts no more, for a fill that has finished or stopped with this index. A
+	 * build still waiting for a thread never runs, and one already running skips the index build if it has not got to
+	 * it yet. The index in use keeps working.
+	 */
+	public void cancel() {
+		cancelled = true;
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+	}
+
+	private void log(final int rgb) {
+		if (usedCount == used.length) {
+			// the build in progress reads a prefix of the old array, so grow into a new one rather than in place
+			used = Arrays.copyOf(used, usedCount * 2);
+		}
+		used[usedCount++] = rgb;
+		if (pending == null && !cancelled && baseSize >= MIN_REBUILD_SIZE && usedCount >= baseSize * rebuildShare) {
+			startBuild();
+		}
+	}
+
+	/*
+	 * Builds an index of the base colours less the used ones on the common pool; neither array is written to after this
+	 * reads it, as the base is only replaced and the log only appended to. Before the first build there is no base, so
+	 * the colours still free are gathered from the index in use instead, here on the fill's thread while it is not
+	 * searching, and none of the log is left to take out of them.
+	 */
+	private void startBuild() {
+		final ColorIndex from = index;
+		final int[] colors = base == null ? index.toArray() : base;
+		final int[] removed = used;
+		final int n = base == null ? 0 : usedCount;
+		pendingUsed = usedCount;
+		pending = ForkJoinPool.commonPool().submit(() -> {
+			final int[] left = n == 0 ? colors : without(colors, removed, n);
+			if (cancelled) {
+				return null;
+			}
+			// indexes may keep or reorder the array they are built from
+			return new Build(left, from.rebuild(left.clone()));
+		});
+	}
+
+	// takes the built index once it is done, catching it up with the colours used since the build started
+	private void swapIfBuilt() {
+		if (pending == null || !pending.isDone()) {
+			return;
+		}
+		final Build build;
+		try {
+			build = pending.join();
+		} catch (final RuntimeException e) {
+			// keep the index in use; it still works, only slower
+			System.out.println("Palette rebuild failed: " + e);
+			pending = null;
+			return;
+		}
+		pending = null;
+
+		final ColorIndex built = build.index;
+		for (int i = pendingUsed; i < usedCount; i++) {
+			built.remove(used[i]);
+		}
+		if (!Double.isNaN(epsilon)) {
+			built.setEpsilon(epsilon);
+		}
+		if (metric != null) {
+			built.setMetric(metric);
+		}
+		base = build.colors;
+		baseSize = base.length;
+		used = Arrays.copyOfRange(used, pendingUsed, Math.max(usedCount, pendingUsed + 64));
+		usedCount -= pendingUsed;
+		index = built;
+	}
+
+	// the colours less the first n removed ones, marked off in a bitset of every 24-bit colour
+	private static int[] without(final int[] colors, final int[] removed, final int n) {
+		final long[] gone = new long[1 << 18];
+		for (int i = 0; i < n; i++) {
+			gone[removed[i] >>> 6] |= 1L << removed[i];
+		}
+		final int[] left = new int[colors.length];
+		int size = 0;
+		for (final int c : colors) {
+			if ((gone[c >>> 6] & 1L << c) == 0) {
+				left[size++] = c;
+			}
+		}
+		return Arrays.copyOf(left, size);
+	}
+
+	// result of a background build: the index and the colours it was built with
+	private static final class Build {
+
+		final int[] colors;
+		final ColorIndex index;
+
+		Build(final int[] colors, final ColorIndex index) {
+			this.colors = colors;
+			this.index = index;
+		}
+	}
+}